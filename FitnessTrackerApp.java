@@ -1,16 +1,46 @@
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.sql.*;
-import java.time.Duration;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public class FitnessTrackerApp extends JFrame {
     static class User {
@@ -33,204 +63,4545 @@ public class FitnessTrackerApp extends JFrame {
     static class Workout {
         Integer id;
         Integer userId;
-        String date;
+        long ts;
+        int tzOffset;
         int durationSeconds;
         double calories;
         String note;
-        Workout(Integer id, Integer userId, String date, int durationSeconds, double calories, String note) {
-            this.id = id; this.userId = userId; this.date = date;
+        Workout(Integer id, Integer userId, long ts, int tzOffset, int durationSeconds, double calories, String note) {
+            this.id = id; this.userId = userId; this.ts = ts; this.tzOffset = tzOffset;
             this.durationSeconds = durationSeconds; this.calories = calories; this.note = note;
         }
     }
 
     static class Instruction {
         Integer id; Integer userId; Integer adminId;
-        String date; String text;
-        Instruction(Integer id, Integer userId, Integer adminId, String date, String text) {
-            this.id=id; this.userId=userId; this.adminId=adminId; this.date=date; this.text=text;
+        long ts; int tzOffset; String text; String adminName;
+        Instruction(Integer id, Integer userId, Integer adminId, long ts, int tzOffset, String text, String adminName) {
+            this.id=id; this.userId=userId; this.adminId=adminId; this.ts=ts; this.tzOffset=tzOffset; this.text=text; this.adminName=adminName;
+        }
+    }
+
+    static class SearchHit {
+        final int kind, refId, userId; final String username, snippet; final Long ts; final int tzOffset;
+        SearchHit(int kind, int refId, int userId, String username, String snippet, Long ts, int tzOffset) {
+            this.kind = kind; this.refId = refId; this.userId = userId; this.username = username;
+            this.snippet = snippet; this.ts = ts; this.tzOffset = tzOffset;
+        }
+        String kindName() { return kind == DB.SEARCH_NOTES ? "Health notes" : kind == DB.SEARCH_WORKOUT ? "Workout" : "Instruction"; }
+    }
+
+    // Search-as-you-type: queries run DEBOUNCE_MS after the last keystroke, and results from a query
+    // that has since been superseded are dropped (or never run if still queued).
+    static class SearchPanel extends JPanel {
+        interface Query { List<SearchHit> run(String text, Integer userId, int offset, int limit) throws SQLException; }
+        private static final int DEBOUNCE_MS = 250, PAGE = 50;
+        private final JTextField field = new JTextField(28);
+        private final DefaultTableModel model = new DefaultTableModel(new String[]{"Type", "User", "When", "Match"}, 0) {
+            @Override public boolean isCellEditable(int r, int c) { return false; }
+        };
+        private final JScrollPane results;
+        private final JButton more = new JButton("More");
+        private final JLabel status = new JLabel();
+        private final javax.swing.Timer debounce;
+        private final Background bg;
+        private final Query query;
+        private volatile int generation;
+        private String text = "";
+        private Integer userId;
+        private int loaded;
+
+        SearchPanel(Background bg, Query query) {
+            super(new BorderLayout(4, 4));
+            this.bg = bg; this.query = query;
+            JTable table = new JTable(model);
+            table.setPreferredScrollableViewportSize(new Dimension(600, table.getRowHeight() * 6));
+            table.getColumnModel().getColumn(3).setPreferredWidth(360);
+            results = new JScrollPane(table);
+            results.setVisible(false);
+            JPanel bar = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+            bar.add(new JLabel("Search:")); bar.add(field); bar.add(more); bar.add(status);
+            more.setVisible(false);
+            add(bar, BorderLayout.NORTH);
+            add(results, BorderLayout.CENTER);
+            debounce = new javax.swing.Timer(DEBOUNCE_MS, e -> start());
+            debounce.setRepeats(false);
+            field.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+                public void insertUpdate(javax.swing.event.DocumentEvent e) { changed(); }
+                public void removeUpdate(javax.swing.event.DocumentEvent e) { changed(); }
+                public void changedUpdate(javax.swing.event.DocumentEvent e) { changed(); }
+            });
+            more.addActionListener(e -> fetch(generation, loaded));
+        }
+
+        // Clears the panel and scopes later searches to userId (null: all users). EDT only, like the
+        // other state here; fetch reads it before going to the background.
+        void reset(Integer userId) {
+            this.userId = userId;
+            generation++;
+            field.setText("");
+        }
+
+        private void changed() {
+            generation++;
+            debounce.restart();
+        }
+
+        private void start() {
+            text = field.getText().trim();
+            model.setRowCount(0);
+            loaded = 0;
+            more.setVisible(false);
+            boolean show = text.length() >= 2;
+            if (results.isVisible() != show) { results.setVisible(show); revalidate(); }
+            status.setText(show ? "Searching..." : "");
+            if (show) fetch(generation, 0);
+        }
+
+        private void fetch(int gen, int offset) {
+            String q = text;
+            Integer uid = userId;
+            long t0 = System.nanoTime();
+            Background.onEdt(bg.call(() -> gen != generation ? List.<SearchHit>of() : query.run(q, uid, offset, PAGE)), hits -> {
+                if (gen != generation) return;
+                for (SearchHit h : hits) {
+                    model.addRow(new Object[]{ h.kindName(), h.username, h.ts == null ? "" : Timestamps.display(h.ts, h.tzOffset), h.snippet });
+                }
+                loaded = offset + hits.size();
+                more.setVisible(hits.size() == PAGE);
+                status.setText(String.format("%d%s result%s (%.0f ms)", loaded, hits.size() == PAGE ? "+" : "", loaded == 1 ? "" : "s", (System.nanoTime() - t0) / 1e6));
+            }, e -> { if (gen == generation) status.setText("Search failed: " + e.getMessage()); });
+        }
+    }
+
+    // Times are stored as epoch millis plus the UTC offset (seconds) in force where they were recorded,
+    // so sorting and range filters are integer comparisons and local days need no zone lookup.
+    static class Timestamps {
+        static final DateTimeFormatter DISPLAY = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+        static int offsetAt(long ts) { return ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(ts)).getTotalSeconds(); }
+
+        static void now(WorkoutRow r) { r.ts = System.currentTimeMillis(); r.tzOffset = offsetAt(r.ts); }
+
+        static LocalDateTime local(long ts, int tzOffset) {
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(ts, 1000), Math.floorMod(ts, 1000) * 1_000_000, ZoneOffset.ofTotalSeconds(tzOffset));
+        }
+
+        static LocalDate day(long ts, int tzOffset) { return LocalDate.ofEpochDay(Math.floorDiv(Math.floorDiv(ts, 1000) + tzOffset, 86400)); }
+
+        static long startOfDay(LocalDate day) { return day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli(); }
+
+        static String display(long ts, int tzOffset) { return DISPLAY.format(local(ts, tzOffset)); }
+
+        static String iso(long ts, int tzOffset) {
+            return OffsetDateTime.of(local(ts, tzOffset), ZoneOffset.ofTotalSeconds(tzOffset)).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        }
+
+        // Accepts epoch millis, ISO-8601 with an offset, and offset-less date-times or dates (read in the local zone).
+        static void parse(String s, WorkoutRow into) {
+            s = s.trim();
+            if (!s.isEmpty() && s.chars().allMatch(Character::isDigit)) {
+                into.ts = Long.parseLong(s); into.tzOffset = offsetAt(into.ts);
+                return;
+            }
+            try {
+                OffsetDateTime odt = OffsetDateTime.parse(s);
+                into.ts = odt.toInstant().toEpochMilli(); into.tzOffset = odt.getOffset().getTotalSeconds();
+                return;
+            } catch (DateTimeParseException ignored) {}
+            ZonedDateTime zdt;
+            try { zdt = LocalDateTime.parse(s).atZone(ZoneId.systemDefault()); }
+            catch (DateTimeParseException e) { zdt = LocalDate.parse(s).atStartOfDay(ZoneId.systemDefault()); }
+            into.ts = zdt.toInstant().toEpochMilli(); into.tzOffset = zdt.getOffset().getTotalSeconds();
+        }
+    }
+
+    static class Background {
+        private static final int MAX_CONCURRENT = 8;
+        private final ExecutorService executor = daemonPool("background", MAX_CONCURRENT);
+        private final Map<String, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final java.util.function.IntConsumer busyListener;
+
+        Background(java.util.function.IntConsumer busyListener) { this.busyListener = busyListener; }
+
+        <T> CompletableFuture<T> call(Callable<T> task) {
+            running.incrementAndGet(); busyChanged();
+            CompletableFuture<T> f = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    f.complete(task.call());
+                } catch (Throwable t) {
+                    f.completeExceptionally(t);
+                } finally { running.decrementAndGet(); busyChanged(); }
+            });
+            return f;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> CompletableFuture<T> coalesce(String key, Callable<T> task) {
+            CompletableFuture<?> f = inFlight.computeIfAbsent(key, k -> call(task));
+            f.whenComplete((v, t) -> inFlight.remove(key, f));
+            return (CompletableFuture<T>) f;
+        }
+
+        private void busyChanged() {
+            if (busyListener != null) SwingUtilities.invokeLater(() -> busyListener.accept(running.get()));
+        }
+
+        static <T> void onEdt(CompletableFuture<T> f, java.util.function.Consumer<T> ok, java.util.function.Consumer<Throwable> err) {
+            f.whenComplete((v, t) -> SwingUtilities.invokeLater(() -> {
+                if (t == null) ok.accept(v);
+                else err.accept(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            }));
+        }
+
+        void shutdown() { executor.shutdown(); }
+
+        // At most `threads` daemon platform threads, started on demand and retired when idle; extra tasks queue.
+        static ExecutorService daemonPool(String name, int threads) {
+            AtomicInteger n = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, name + "-" + n.incrementAndGet()); t.setDaemon(true); return t;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    interface PageSource<T> {
+        int count() throws SQLException;
+        List<T> fetch(T after, int limit) throws SQLException;
+        List<T> keys(T after, int limit) throws SQLException;
+    }
+
+    static class PagedTableModel<T> extends AbstractTableModel {
+        static final int PAGE_SIZE = 200;
+        private static final int MAX_CACHED_PAGES = 16;
+        private final String name;
+        private final String[] columns;
+        private final java.util.function.BiFunction<T, Integer, Object> cell;
+        private final Background bg;
+        private final Map<Integer, List<T>> pages = new LinkedHashMap<>(MAX_CACHED_PAGES, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> e) { return size() > MAX_CACHED_PAGES; }
+        };
+        private PageSource<T> source;
+        private List<T> boundaries;
+        private int generation, sourceId;
+        private int rowCount;
+
+        PagedTableModel(String name, String[] columns, Background bg, java.util.function.BiFunction<T, Integer, Object> cell) {
+            this.name = name; this.columns = columns; this.bg = bg; this.cell = cell;
+        }
+
+        void setSource(PageSource<T> src) { source = src; sourceId++; reload(); }
+
+        void clear() { source = null; generation++; pages.clear(); rowCount = 0; fireTableDataChanged(); }
+
+        void reload() {
+            if (source == null) return;
+            PageSource<T> src = source;
+            int gen = ++generation;
+            pages.clear();
+            boundaries = new ArrayList<>();
+            boundaries.add(null);
+            // Reloads of the same source share one in-flight count; only the newest reload applies it.
+            Background.onEdt(Metrics.GLOBAL.track("task.count." + name, bg.coalesce(name + ":count:" + sourceId, src::count)), n -> {
+                if (gen != generation) return;
+                rowCount = n;
+                fireTableDataChanged();
+            }, Throwable::printStackTrace);
+        }
+
+        // Drops matching rows from the contiguous cached pages starting at page 0 and re-chunks them,
+        // so a delete doesn't refetch what is already on screen. Later pages reload lazily.
+        int removeIf(java.util.function.Predicate<T> match) {
+            List<T> prefix = new ArrayList<>();
+            boolean reachedEnd = cachedPrefix(prefix);
+            int before = prefix.size();
+            prefix.removeIf(match);
+            int removed = before - prefix.size();
+            if (removed == 0) return 0;
+            rechunk(prefix, reachedEnd);
+            rowCount -= removed;
+            fireTableDataChanged();
+            return removed;
+        }
+
+        // Puts a new row at its sort position. Inside the cached prefix (typically the top) it is
+        // spliced in without a fetch; further down only the count changes and pages reload lazily.
+        void insert(T item, Comparator<T> order) {
+            if (source == null) return;
+            List<T> prefix = new ArrayList<>();
+            boolean reachedEnd = cachedPrefix(prefix);
+            int at = 0;
+            while (at < prefix.size() && order.compare(prefix.get(at), item) < 0) at++;
+            boolean cached = at < prefix.size() || reachedEnd;
+            if (cached) prefix.add(at, item);
+            rechunk(prefix, reachedEnd);
+            rowCount++;
+            if (cached) fireTableRowsInserted(at, at);
+            else fireTableDataChanged();
+        }
+
+        // Rows of the contiguous cached pages from page 0; true if they reach the last row.
+        private boolean cachedPrefix(List<T> into) {
+            for (int p = 0; ; p++) {
+                List<T> page = pages.get(p);
+                if (page == null) return false;
+                into.addAll(page);
+                if (page.size() < PAGE_SIZE) return true;
+            }
+        }
+
+        private void rechunk(List<T> prefix, boolean reachedEnd) {
+            generation++;
+            pages.clear();
+            List<T> bounds = new ArrayList<>();
+            bounds.add(null);
+            for (int i = 0; i < prefix.size(); i += PAGE_SIZE) {
+                List<T> chunk = new ArrayList<>(prefix.subList(i, Math.min(prefix.size(), i + PAGE_SIZE)));
+                if (chunk.size() < PAGE_SIZE && !reachedEnd) break;
+                pages.put(i / PAGE_SIZE, chunk);
+                if (chunk.size() == PAGE_SIZE) bounds.add(chunk.get(PAGE_SIZE - 1));
+            }
+            boundaries = bounds;
+        }
+
+        // Replaces matching cached rows in place; returns false if none were loaded.
+        boolean updateIf(java.util.function.Predicate<T> match, java.util.function.UnaryOperator<T> update) {
+            boolean found = false;
+            for (Map.Entry<Integer, List<T>> e : pages.entrySet()) {
+                List<T> page = e.getValue();
+                for (int i = 0; i < page.size(); i++) {
+                    if (!match.test(page.get(i))) continue;
+                    page.set(i, update.apply(page.get(i)));
+                    int row = e.getKey() * PAGE_SIZE + i;
+                    fireTableRowsUpdated(row, row);
+                    found = true;
+                }
+            }
+            return found;
+        }
+
+        T itemAt(int row) {
+            if (row < 0 || row >= rowCount) return null;
+            List<T> page = pages.get(row / PAGE_SIZE);
+            int off = row % PAGE_SIZE;
+            return page == null || off >= page.size() ? null : page.get(off);
+        }
+
+        @Override public int getRowCount() { return rowCount; }
+        @Override public int getColumnCount() { return columns.length; }
+        @Override public String getColumnName(int c) { return columns[c]; }
+
+        @Override public Object getValueAt(int row, int col) {
+            T item = itemAt(row);
+            if (item != null) return cell.apply(item, col);
+            if (row < rowCount && !pages.containsKey(row / PAGE_SIZE)) requestPage(row / PAGE_SIZE);
+            return col == 0 ? "..." : "";
+        }
+
+        private void requestPage(int page) {
+            PageSource<T> src = source;
+            List<T> bounds = boundaries;
+            int gen = generation;
+            Background.onEdt(Metrics.GLOBAL.track("task.page." + name, bg.coalesce(name + ":" + gen + ":" + page, () -> loadPage(src, bounds, page))), rows -> {
+                if (gen != generation) return;
+                pages.put(page, rows);
+                int first = page * PAGE_SIZE;
+                int last = Math.min(rowCount, first + PAGE_SIZE) - 1;
+                if (last >= first) fireTableRowsUpdated(first, last);
+            }, Throwable::printStackTrace);
+        }
+
+        // bounds.get(p) is the last row of page p-1; seeking forward walks only the key index.
+        private static <T> List<T> loadPage(PageSource<T> src, List<T> bounds, int page) throws SQLException {
+            synchronized (bounds) {
+                int known = bounds.size() - 1;
+                if (known < page) {
+                    List<T> keys = src.keys(bounds.get(known), (page - known) * PAGE_SIZE);
+                    for (int i = PAGE_SIZE - 1; i < keys.size(); i += PAGE_SIZE) bounds.add(keys.get(i));
+                    if (bounds.size() - 1 < page) return List.of();
+                }
+                List<T> rows = src.fetch(bounds.get(page), PAGE_SIZE);
+                if (bounds.size() - 1 == page && rows.size() == PAGE_SIZE) bounds.add(rows.get(PAGE_SIZE - 1));
+                return rows;
+            }
+        }
+    }
+
+    static class CsvWriter implements Closeable {
+        private final Writer out;
+        private final StringBuilder row = new StringBuilder(256);
+        private boolean first = true;
+
+        CsvWriter(Writer out) { this.out = out; }
+
+        CsvWriter field(String v) {
+            sep();
+            if (v == null) return this;
+            boolean quote = false;
+            for (int i = 0; i < v.length() && !quote; i++) {
+                char ch = v.charAt(i);
+                quote = ch == ',' || ch == '"' || ch == '\r' || ch == '\n';
+            }
+            if (!quote) { row.append(v); return this; }
+            row.append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char ch = v.charAt(i);
+                if (ch == '"') row.append('"');
+                row.append(ch);
+            }
+            row.append('"');
+            return this;
+        }
+
+        CsvWriter field(long v) { sep(); row.append(v); return this; }
+
+        CsvWriter field2dp(double v) {
+            sep();
+            long cents = Math.round(v * 100);
+            if (cents < 0) { row.append('-'); cents = -cents; }
+            row.append(cents / 100).append('.');
+            long frac = cents % 100;
+            if (frac < 10) row.append('0');
+            row.append(frac);
+            return this;
+        }
+
+        void endRow() throws IOException {
+            row.append("\r\n");
+            out.append(row);
+            row.setLength(0);
+            first = true;
+        }
+
+        private void sep() { if (!first) row.append(','); first = false; }
+
+        void flush() throws IOException { out.flush(); }
+
+        @Override public void close() throws IOException { out.close(); }
+    }
+
+    static class CsvReader {
+        private final Reader in;
+        private final StringBuilder field = new StringBuilder(64);
+        private int peeked = -2;
+
+        CsvReader(Reader in) { this.in = in; }
+
+        private int read() throws IOException {
+            if (peeked != -2) { int c = peeked; peeked = -2; return c; }
+            return in.read();
+        }
+
+        boolean next(List<String> fields) throws IOException {
+            fields.clear();
+            int c = read();
+            if (c == -1) return false;
+            while (true) {
+                field.setLength(0);
+                if (c == '"') {
+                    while (true) {
+                        c = read();
+                        if (c == -1) break;
+                        if (c == '"') {
+                            c = read();
+                            if (c != '"') break;
+                        }
+                        field.append((char) c);
+                    }
+                }
+                while (c != -1 && c != ',' && c != '\n' && c != '\r') { field.append((char) c); c = read(); }
+                fields.add(field.toString());
+                if (c == ',') { c = read(); continue; }
+                if (c == '\r') { int n = read(); if (n != '\n') peeked = n; }
+                return true;
+            }
+        }
+    }
+
+    // Elapsed time is kept as banked nanos plus the current running segment, so pauses cost nothing
+    // and wall-clock adjustments never affect a session. Checkpoints are wall-clock based because
+    // nanoTime does not survive a restart.
+    static class WorkoutSession {
+        final int userId;
+        private long startedAt = -1;
+        private long banked, lastLap, intervalNanos;
+        private final List<Long> laps = new ArrayList<>();
+
+        WorkoutSession(int userId) { this.userId = userId; }
+
+        boolean running() { return startedAt >= 0; }
+        void resume() { if (startedAt < 0) startedAt = System.nanoTime(); }
+        void pause() { if (startedAt >= 0) { banked += System.nanoTime() - startedAt; startedAt = -1; } }
+        long elapsedNanos() { return startedAt < 0 ? banked : banked + System.nanoTime() - startedAt; }
+        long elapsedSeconds() { return elapsedNanos() / 1_000_000_000L; }
+
+        long lap() {
+            long e = elapsedNanos(), l = e - lastLap;
+            lastLap = e; laps.add(l);
+            return l;
+        }
+        List<Long> laps() { return Collections.unmodifiableList(laps); }
+
+        void setIntervalSeconds(int seconds) { intervalNanos = seconds * 1_000_000_000L; }
+        int intervalSeconds() { return (int) (intervalNanos / 1_000_000_000L); }
+        long interval() { return intervalNanos <= 0 ? 0 : elapsedNanos() / intervalNanos; }
+
+        Properties checkpoint() {
+            Properties p = new Properties();
+            p.setProperty("user", Integer.toString(userId));
+            p.setProperty("elapsedMs", Long.toString(elapsedNanos() / 1_000_000L));
+            p.setProperty("running", Boolean.toString(running()));
+            p.setProperty("savedAt", Long.toString(System.currentTimeMillis()));
+            p.setProperty("lastLapMs", Long.toString(lastLap / 1_000_000L));
+            p.setProperty("intervalSeconds", Integer.toString(intervalSeconds()));
+            StringBuilder sb = new StringBuilder();
+            for (long l : laps) { if (sb.length() > 0) sb.append(','); sb.append(l / 1_000_000L); }
+            p.setProperty("lapsMs", sb.toString());
+            return p;
+        }
+
+        // A session that was running keeps counting across the downtime; a paused one does not.
+        static WorkoutSession restore(Properties p) {
+            WorkoutSession s = new WorkoutSession(Integer.parseInt(p.getProperty("user")));
+            long ms = Long.parseLong(p.getProperty("elapsedMs", "0"));
+            boolean running = Boolean.parseBoolean(p.getProperty("running"));
+            if (running) ms += Math.max(0, System.currentTimeMillis() - Long.parseLong(p.getProperty("savedAt", "0")));
+            s.banked = ms * 1_000_000L;
+            s.lastLap = Long.parseLong(p.getProperty("lastLapMs", "0")) * 1_000_000L;
+            s.setIntervalSeconds(Integer.parseInt(p.getProperty("intervalSeconds", "0")));
+            for (String l : p.getProperty("lapsMs", "").split(",")) if (!l.isEmpty()) s.laps.add(Long.parseLong(l) * 1_000_000L);
+            if (running) s.resume();
+            return s;
+        }
+    }
+
+    // One checkpoint file per user next to the database; writes are serialized and ignored once
+    // the session they belong to has been saved or discarded.
+    static class SessionStore {
+        private final String url;
+        private final Map<Integer, WorkoutSession> active = new HashMap<>();
+        SessionStore(String url) { this.url = url; }
+
+        private Path file(int userId) { return DB.sidecar(url, ".session." + userId); }
+
+        synchronized void begin(WorkoutSession s) { active.put(s.userId, s); }
+
+        synchronized void saveIfActive(WorkoutSession s, Properties p) throws IOException {
+            Path f = file(s.userId);
+            if (f == null || active.get(s.userId) != s) return;
+            Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+            try (Writer w = Files.newBufferedWriter(tmp)) { p.store(w, null); }
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        synchronized void clear(WorkoutSession s) throws IOException {
+            active.remove(s.userId);
+            Path f = file(s.userId);
+            if (f != null) Files.deleteIfExists(f);
+        }
+
+        synchronized WorkoutSession load(int userId) {
+            Path f = file(userId);
+            if (f == null || !Files.exists(f)) return null;
+            Properties p = new Properties();
+            try (Reader r = Files.newBufferedReader(f)) {
+                p.load(r);
+                WorkoutSession s = WorkoutSession.restore(p);
+                active.put(userId, s);
+                return s;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    // Paints HH:MM:SS from a fixed char buffer; ticks that don't change the digits do no work.
+    static class TimerLabel extends JComponent {
+        private final char[] digits = "00:00:00".toCharArray();
+        private final Map<?, ?> textHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        private long shown = 0;
+
+        TimerLabel() {
+            setFont(UIManager.getFont("Label.font"));
+            setForeground(UIManager.getColor("Label.foreground"));
+        }
+
+        void setSeconds(long seconds) {
+            seconds = Math.min(seconds, 99 * 3600 + 59 * 60 + 59);
+            if (seconds == shown) return;
+            shown = seconds;
+            put(0, seconds / 3600); put(3, seconds / 60 % 60); put(6, seconds % 60);
+            repaint();
+        }
+
+        private void put(int at, long v) { digits[at] = (char) ('0' + v / 10); digits[at + 1] = (char) ('0' + v % 10); }
+
+        @Override public Dimension getPreferredSize() {
+            FontMetrics fm = getFontMetrics(getFont());
+            Insets in = getInsets();
+            return new Dimension(fm.charsWidth(digits, 0, digits.length) + in.left + in.right, fm.getHeight() + in.top + in.bottom);
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            if (textHints != null) g2.addRenderingHints(textHints);
+            g2.setFont(getFont());
+            g2.setColor(getForeground());
+            Insets in = getInsets();
+            g2.drawChars(digits, 0, digits.length, in.left, in.top + g2.getFontMetrics().getAscent());
+        }
+    }
+
+    static class WorkoutRow {
+        int userId; long ts; int tzOffset; int durationSeconds; double calories; String note;
+        WorkoutRow copy() {
+            WorkoutRow r = new WorkoutRow();
+            r.userId = userId; r.ts = ts; r.tzOffset = tzOffset; r.durationSeconds = durationSeconds; r.calories = calories; r.note = note;
+            return r;
+        }
+    }
+
+    static class WorkoutCsvParser {
+        private final CsvReader csv;
+        private final List<String> row = new ArrayList<>();
+        private final Integer forUserId;
+        private final java.util.function.Function<String, Integer> userIds;
+        private final Map<String, Integer> resolved = new HashMap<>();
+        private final WorkoutRow now = new WorkoutRow();
+        private Integer cDate, cDur, cCal, cNote, cUid, cUname;
+        private int line;
+
+        WorkoutCsvParser(Reader in, Integer forUserId, java.util.function.Function<String, Integer> userIds) throws IOException {
+            this.csv = new CsvReader(in); this.forUserId = forUserId; this.userIds = userIds;
+            Timestamps.now(now);
+            if (!csv.next(row)) return;
+            line = 1;
+            Map<String, Integer> col = new HashMap<>();
+            for (int i = 0; i < row.size(); i++) col.put(row.get(i).trim().toLowerCase(), i);
+            cDate = col.get("date"); cDur = col.get("duration_seconds"); cCal = col.get("calories"); cNote = col.get("note");
+            cUid = col.get("user_id"); cUname = col.get("username");
+            if (cDur == null || cCal == null) throw new IOException("CSV header must contain duration_seconds and calories");
+            if (forUserId == null && cUid == null && cUname == null) throw new IOException("CSV header must contain user_id or username");
+        }
+
+        boolean next(WorkoutRow r) throws IOException {
+            if (line == 0) return false;
+            while (csv.next(row)) {
+                line++;
+                if (row.size() == 1 && row.get(0).isEmpty()) continue;
+                try {
+                    if (forUserId != null) r.userId = forUserId;
+                    else if (cUid != null && !cell(cUid).isEmpty()) r.userId = Integer.parseInt(cell(cUid).trim());
+                    else {
+                        String name = cell(cUname);
+                        Integer id = resolved.computeIfAbsent(name, userIds);
+                        if (id == null) throw new IOException("Line " + line + ": unknown username " + name);
+                        r.userId = id;
+                    }
+                    String date = cDate == null ? "" : cell(cDate);
+                    if (date.isEmpty()) { r.ts = now.ts; r.tzOffset = now.tzOffset; }
+                    else Timestamps.parse(date, r);
+                    r.durationSeconds = Integer.parseInt(cell(cDur).trim());
+                    r.calories = Double.parseDouble(cell(cCal).trim());
+                    r.note = cNote == null ? "" : cell(cNote);
+                } catch (NumberFormatException | DateTimeParseException e) {
+                    throw new IOException("Line " + line + ": " + e.getMessage(), e);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private String cell(int i) { return i < row.size() ? row.get(i) : ""; }
+    }
+
+    static class Headless {
+        static int run(String[] args) {
+            List<String> rest = new ArrayList<>(Arrays.asList(args));
+            rest.remove("--headless");
+            String cmd = rest.isEmpty() ? "" : rest.remove(0);
+            try {
+                switch (cmd) {
+                    case "ingest": return ingest(rest);
+                    case "bench": return Bench.run(rest);
+                    case "calibrate-login": return calibrateLogin(rest);
+                    case "serve": return Server.serve(rest);
+                    case "loadtest": return LoadTest.run(rest);
+                    case "startup-bench": return startupBench(rest);
+                    case "generate": return Generator.run(rest);
+                    case "replay": return Replay.run(rest);
+                    case "archive": return archive(rest);
+                    case "backup": return Backup.run(rest);
+                    case "backup-bench": return Backup.bench(rest);
+                    case "selftest": return SelfTest.run(rest);
+                    default:
+                        System.err.println("Usage: FitnessTrackerApp [--headless] ingest [--batch N] [--commit-rows N] [--commit-ms MS] [file.csv ...|-]");
+                        System.err.println("       FitnessTrackerApp [--headless] bench [--sizes 10000,1000000,10000000] [--fixtures DIR] [--out FILE.json]");
+                        System.err.println("                                            [--warmup N] [--iterations N] [--iteration-ms MS]");
+                        System.err.println("       FitnessTrackerApp [--headless] calibrate-login [--target-ms MS]");
+                        System.err.println("       FitnessTrackerApp [--headless] serve [--db FILE] [--host ADDR] [--port N]");
+                        System.err.println("       FitnessTrackerApp [--headless] loadtest [--url URL] [--clients N] [--users N] [--duration-s S]");
+                        System.err.println("                                               [--admin NAME] [--admin-password PW]");
+                        System.err.println("       FitnessTrackerApp [--headless] startup-bench [--runs N] [--budget-ms MS] [--jvm-arg ARG ...]");
+                        System.err.println("       FitnessTrackerApp [--headless] generate [--db FILE] [--users N] [--workouts-per-user N] [--instructions-per-user N]");
+                        System.err.println("                                               [--days N] [--seed N] [--trace-out FILE] [--trace-sessions N] [--trace-minutes N]");
+                        System.err.println("       FitnessTrackerApp [--headless] replay --trace FILE [--db FILE] [--speed X | --rate OPS] [--threads N] [--password PW]");
+                        System.err.println("       FitnessTrackerApp [--headless] archive [--db FILE] [--older-than-days N]");
+                        System.err.println("       FitnessTrackerApp [--headless] backup [--db FILE] [--out DIR] [--keep N] [--stepped [--pages-per-step N] [--pause-ms MS]] [--quick-check]");
+                        System.err.println("       FitnessTrackerApp [--headless] selftest");
+                        System.err.println("       FitnessTrackerApp [--headless] backup-bench [--db FILE] [--tmp DIR] [--writers N] [--readers N] [--baseline-s N] [backup options]");
+                        System.err.println("       ingest, calibrate-login and serve accept --db FILE (default ftracker.db, or -Dftracker.db)");
+                        return 2;
+                }
+            } catch (Exception e) {
+                System.err.println(cmd + " failed: " + e);
+                return 1;
+            }
+        }
+
+        static DB openDb(List<String> args) { return new DB("jdbc:sqlite:" + option(args, "--db", System.getProperty("ftracker.db", "ftracker.db"))); }
+
+        static String option(List<String> args, String name, String def) {
+            int i = args.indexOf(name);
+            if (i < 0) return def;
+            if (i + 1 >= args.size()) throw new IllegalArgumentException(name + " needs a value");
+            String v = args.get(i + 1);
+            args.remove(i + 1); args.remove(i);
+            return v;
+        }
+
+        // Cold-starts the desktop app in fresh JVMs (same classpath, plus any --jvm-arg such as
+        // -XX:SharedArchiveFile=ftracker.jsa) and reports the startupReport timings against a budget.
+        static int startupBench(List<String> args) throws Exception {
+            int runs = Integer.parseInt(option(args, "--runs", "5"));
+            long budget = Long.parseLong(option(args, "--budget-ms", "1500"));
+            List<String> jvmArgs = new ArrayList<>();
+            for (String a; (a = option(args, "--jvm-arg", null)) != null; ) jvmArgs.add(a);
+            List<String> cmd = new ArrayList<>();
+            cmd.add(ProcessHandle.current().info().command().orElse("java"));
+            cmd.addAll(jvmArgs);
+            cmd.add("-cp"); cmd.add(System.getProperty("java.class.path"));
+            if (System.getProperty("ftracker.db") != null) cmd.add("-Dftracker.db=" + System.getProperty("ftracker.db"));
+            cmd.add("-Dftracker.startupReport=exit");
+            cmd.add("FitnessTrackerApp");
+            LatencyHistogram total = new LatencyHistogram();
+            for (int i = 1; i <= runs; i++) {
+                Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+                String out = new String(proc.getInputStream().readAllBytes());
+                String line = out.lines().filter(l -> l.startsWith("startup:")).findFirst().orElse(null);
+                if (proc.waitFor() != 0 || line == null) {
+                    System.err.println("Run " + i + " failed:\n" + out);
+                    return 1;
+                }
+                System.out.println("run " + i + ": " + line.substring(9));
+                total.record(Long.parseLong(line.replaceAll(".*total=(\\d+) ms.*", "$1")) * 1_000_000L);
+            }
+            long p50 = total.percentile(50) / 1_000_000;
+            System.out.printf("cold start over %d runs: p50=%d ms max=%d ms, budget %d ms: %s%n", runs, p50, total.max() / 1_000_000, budget, p50 <= budget ? "OK" : "OVER");
+            return p50 <= budget ? 0 : 1;
+        }
+
+        // One maintenance pass by hand: archive, switch the file to incremental vacuum if needed, free pages.
+        static int archive(List<String> args) throws Exception {
+            DB db = openDb(args);
+            int days = Integer.parseInt(option(args, "--older-than-days", "365"));
+            try {
+                long t0 = System.nanoTime();
+                int moved = db.archiveOlderThan(System.currentTimeMillis() - days * 86_400_000L);
+                boolean converted = db.enableIncrementalVacuum();
+                long freed = db.incrementalVacuum(Long.MAX_VALUE / 2_000_000L);
+                System.out.printf("Archived %d workouts older than %d days, freed %d pages%s in %.1fs%n", moved, days, freed,
+                        converted ? " (switched to incremental auto-vacuum)" : "", (System.nanoTime() - t0) / 1e9);
+                return 0;
+            } finally { db.close(); }
+        }
+
+        static int calibrateLogin(List<String> args) throws Exception {
+            long target = Long.parseLong(option(args, "--target-ms", Long.toString(Passwords.LOGIN_TARGET_MS)));
+            int iterations = Passwords.calibrate(target);
+            char[] pw = "benchmark".toCharArray();
+            String h = Passwords.hash(pw, iterations);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+                long t0 = System.nanoTime();
+                Passwords.verify(h, pw);
+                best = Math.min(best, System.nanoTime() - t0);
+            }
+            DB db = openDb(args);
+            try { db.setPasswordIterations(iterations); } finally { db.close(); }
+            System.out.printf("PBKDF2 iterations set to %d (verify takes %.1fms, target %dms). Existing hashes upgrade on next login.%n",
+                    iterations, best / 1e6, target);
+            return 0;
+        }
+
+        static int ingest(List<String> args) throws Exception {
+            int batch = Integer.parseInt(option(args, "--batch", "1000"));
+            int commitRows = Integer.parseInt(option(args, "--commit-rows", "50000"));
+            long commitMs = Long.parseLong(option(args, "--commit-ms", "2000"));
+            DB db = openDb(args);
+            if (args.isEmpty()) args.add("-");
+            long t0 = System.nanoTime();
+            long rows;
+            try (DB.WorkoutBatchWriter w = db.batchWriter(batch, commitRows, commitMs)) {
+                WorkoutRow r = new WorkoutRow();
+                for (String f : args) {
+                    try (BufferedReader in = "-".equals(f) ? new BufferedReader(new InputStreamReader(System.in))
+                            : Files.newBufferedReader(Paths.get(f))) {
+                        WorkoutCsvParser parser = new WorkoutCsvParser(in, null, db::userIdForName);
+                        while (parser.next(r)) w.add(r);
+                    }
+                }
+                w.flush();
+                rows = w.written();
+            } finally { db.close(); }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("Ingested %d workouts in %.2fs (%.0f rows/sec)%n", rows, secs, rows / Math.max(secs, 1e-9));
+            return 0;
+        }
+    }
+
+    // Just enough JSON for the server's flat request and response bodies.
+    static class Json {
+        static String write(Object v) { StringBuilder sb = new StringBuilder(); write(sb, v); return sb.toString(); }
+
+        static void write(StringBuilder sb, Object v) {
+            if (v == null) sb.append("null");
+            else if (v instanceof String) quote(sb, (String) v);
+            else if (v instanceof Number || v instanceof Boolean) sb.append(v);
+            else if (v instanceof Map) {
+                sb.append('{');
+                boolean first = true;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    quote(sb, String.valueOf(e.getKey()));
+                    sb.append(':');
+                    write(sb, e.getValue());
+                }
+                sb.append('}');
+            } else if (v instanceof Collection) {
+                sb.append('[');
+                boolean first = true;
+                for (Object o : (Collection<?>) v) { if (!first) sb.append(','); first = false; write(sb, o); }
+                sb.append(']');
+            } else quote(sb, v.toString());
+        }
+
+        private static void quote(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                        else sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+
+        // Objects become LinkedHashMaps, arrays Lists, numbers Doubles.
+        static Object parse(String s) throws IOException {
+            Json p = new Json(s);
+            Object v = p.value();
+            p.ws();
+            if (p.pos != s.length()) throw p.error("trailing characters");
+            return v;
+        }
+
+        private final String s;
+        private int pos;
+        private Json(String s) { this.s = s; }
+
+        private IOException error(String what) { return new IOException("Bad JSON at " + pos + ": " + what); }
+        private void ws() { while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++; }
+
+        private Object value() throws IOException {
+            ws();
+            if (pos >= s.length()) throw error("unexpected end");
+            char c = s.charAt(pos);
+            if (c == '{') {
+                pos++;
+                Map<String, Object> m = new LinkedHashMap<>();
+                ws();
+                if (pos < s.length() && s.charAt(pos) == '}') { pos++; return m; }
+                while (true) {
+                    ws();
+                    if (pos >= s.length() || s.charAt(pos) != '"') throw error("expected key");
+                    String k = string();
+                    ws();
+                    if (pos >= s.length() || s.charAt(pos++) != ':') throw error("expected ':'");
+                    m.put(k, value());
+                    ws();
+                    if (pos >= s.length()) throw error("unexpected end");
+                    char d = s.charAt(pos++);
+                    if (d == '}') return m;
+                    if (d != ',') throw error("expected ',' or '}'");
+                }
+            }
+            if (c == '[') {
+                pos++;
+                List<Object> l = new ArrayList<>();
+                ws();
+                if (pos < s.length() && s.charAt(pos) == ']') { pos++; return l; }
+                while (true) {
+                    l.add(value());
+                    ws();
+                    if (pos >= s.length()) throw error("unexpected end");
+                    char d = s.charAt(pos++);
+                    if (d == ']') return l;
+                    if (d != ',') throw error("expected ',' or ']'");
+                }
+            }
+            if (c == '"') return string();
+            if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+            if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+            if (s.startsWith("null", pos)) { pos += 4; return null; }
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+            try { return Double.parseDouble(s.substring(start, pos)); }
+            catch (NumberFormatException e) { pos = start; throw error("unexpected '" + c + "'"); }
+        }
+
+        private String string() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') { sb.append(c); continue; }
+                if (pos >= s.length()) break;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) throw error("bad escape");
+                        try { sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16)); }
+                        catch (NumberFormatException ex) { throw error("bad escape"); }
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw error("unterminated string");
+        }
+    }
+
+    // JSON API over one shared DB. Requests run on a Background.daemonPool of ftracker.serverThreads
+    // (default 32); password checks still go through Auth's bounded hash pool, and workout writes
+    // through the write-behind queue so concurrent clients share commits. Bearer tokens are random
+    // and live in memory only.
+    static class Server {
+        private static final long TOKEN_TTL_MS = 12 * 3600_000L;
+        private static final int MAX_BODY = 1 << 20, MAX_LIMIT = 500;
+
+        interface Handler { Object handle(Token t, Map<String, String> query, Map<String, Object> body) throws Exception; }
+
+        static class HttpError extends Exception {
+            final int status;
+            HttpError(int status, String message) { super(message); this.status = status; }
+        }
+
+        static class Token {
+            final int userId; final String role; volatile long expires;
+            Token(int userId, String role, long expires) { this.userId = userId; this.role = role; this.expires = expires; }
+            boolean admin() { return "admin".equals(role); }
+        }
+
+        private static class Route {
+            final Handler handler; final boolean authed;
+            Route(Handler handler, boolean authed) { this.handler = handler; this.authed = authed; }
+        }
+
+        private final DB db;
+        private final Auth auth;
+        private final HttpServer http;
+        private final ExecutorService handlers = Background.daemonPool("http", Integer.getInteger("ftracker.serverThreads", 32));
+        private final Map<String, Map<String, Route>> routes = new HashMap<>();
+        private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+        private final AtomicLong lastSweep = new AtomicLong();
+        private final SecureRandom random = new SecureRandom();
+
+        Server(DB db, String host, int port) throws IOException {
+            this.db = db;
+            this.auth = new Auth(db);
+            http = HttpServer.create(new InetSocketAddress(host, port), 1024);
+            http.setExecutor(handlers);
+            route("GET", "/api/health", false, (t, q, b) -> Map.of("ok", true));
+            route("POST", "/api/login", false, this::login);
+            route("POST", "/api/users", true, this::createUser);
+            route("GET", "/api/workouts", true, this::listWorkouts);
+            route("POST", "/api/workouts", true, this::addWorkout);
+            route("GET", "/api/instructions", true, this::listInstructions);
+            route("POST", "/api/instructions", true, this::sendInstruction);
+        }
+
+        static int serve(List<String> args) throws Exception {
+            String file = option(args, "--db", System.getProperty("ftracker.db", "ftracker.db"));
+            String host = option(args, "--host", "127.0.0.1");
+            int port = Integer.parseInt(option(args, "--port", "8080"));
+            DB db = new DB("jdbc:sqlite:" + file);
+            db.startMaintenance();
+            Server server = new Server(db, host, port);
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> { server.stop(); stopped.countDown(); }));
+            server.http.start();
+            System.out.println("Serving " + file + " on http://" + host + ":" + server.http.getAddress().getPort() + "/api (Ctrl+C to stop)");
+            stopped.await();
+            return 0;
+        }
+
+        void stop() {
+            http.stop(1);
+            handlers.shutdown();
+            auth.shutdown();
+            db.close();
+        }
+
+        private void route(String method, String path, boolean authed, Handler h) {
+            routes.computeIfAbsent(path, p -> {
+                http.createContext(p, ex -> dispatch(ex, p));
+                return new HashMap<>();
+            }).put(method, new Route(h, authed));
+        }
+
+        private void dispatch(HttpExchange ex, String path) {
+            long t0 = System.nanoTime();
+            String method = ex.getRequestMethod();
+            int status = 200;
+            Object result;
+            try {
+                if (!ex.getRequestURI().getPath().equals(path)) throw new HttpError(404, "Not found");
+                Route r = routes.get(path).get(method);
+                if (r == null) throw new HttpError(405, "Method not allowed");
+                Token t = r.authed ? token(ex) : null;
+                result = r.handler.handle(t, query(ex), "POST".equals(method) ? body(ex) : Map.of());
+            } catch (HttpError e) {
+                status = e.status;
+                result = Map.of("error", e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                status = 500;
+                result = Map.of("error", "Internal error");
+            }
+            byte[] out = Json.write(result).getBytes(StandardCharsets.UTF_8);
+            try {
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.sendResponseHeaders(status, out.length);
+                ex.getResponseBody().write(out);
+            } catch (IOException ignored) {
+            } finally { ex.close(); }
+            Metrics.GLOBAL.record("http." + method + " " + path, System.nanoTime() - t0, status < 500);
+        }
+
+        // Tokens nobody presents again are only found by a sweep; logins run one at most once a minute.
+        private void sweepTokens(long now) {
+            long last = lastSweep.get();
+            if (now - last < 60_000 || !lastSweep.compareAndSet(last, now)) return;
+            tokens.values().removeIf(t -> t.expires < now);
+        }
+
+        private Token token(HttpExchange ex) throws HttpError {
+            String h = ex.getRequestHeaders().getFirst("Authorization");
+            String key = h != null && h.startsWith("Bearer ") ? h.substring(7).trim() : null;
+            Token t = key != null ? tokens.get(key) : null;
+            long now = System.currentTimeMillis();
+            if (t != null && t.expires < now) { tokens.remove(key, t); t = null; }
+            if (t == null) throw new HttpError(401, "Missing or expired token");
+            t.expires = now + TOKEN_TTL_MS;
+            return t;
+        }
+
+        private static Map<String, String> query(HttpExchange ex) {
+            String raw = ex.getRequestURI().getRawQuery();
+            if (raw == null || raw.isEmpty()) return Map.of();
+            Map<String, String> q = new HashMap<>();
+            for (String kv : raw.split("&")) {
+                int i = kv.indexOf('=');
+                String k = URLDecoder.decode(i < 0 ? kv : kv.substring(0, i), StandardCharsets.UTF_8);
+                q.put(k, i < 0 ? "" : URLDecoder.decode(kv.substring(i + 1), StandardCharsets.UTF_8));
+            }
+            return q;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> body(HttpExchange ex) throws IOException, HttpError {
+            byte[] raw = ex.getRequestBody().readNBytes(MAX_BODY + 1);
+            if (raw.length > MAX_BODY) throw new HttpError(413, "Request body too large");
+            if (raw.length == 0) return Map.of();
+            try {
+                Object v = Json.parse(new String(raw, StandardCharsets.UTF_8));
+                if (!(v instanceof Map)) throw new HttpError(400, "Expected a JSON object");
+                return (Map<String, Object>) v;
+            } catch (IOException e) { throw new HttpError(400, e.getMessage()); }
+        }
+
+        private static String str(Map<String, Object> body, String key, boolean required) throws HttpError {
+            Object v = body.get(key);
+            if (v == null && !required) return null;
+            if (!(v instanceof String) || ((String) v).isEmpty()) throw new HttpError(400, key + " must be a non-empty string");
+            return (String) v;
+        }
+
+        private static Number num(Map<String, Object> body, String key, boolean required) throws HttpError {
+            Object v = body.get(key);
+            if (v == null && !required) return null;
+            if (!(v instanceof Number)) throw new HttpError(400, key + " must be a number");
+            return (Number) v;
+        }
+
+        private static Long longParam(Map<String, String> q, String key) throws HttpError {
+            String v = q.get(key);
+            if (v == null) return null;
+            try { return Long.parseLong(v); } catch (NumberFormatException e) { throw new HttpError(400, key + " must be an integer"); }
+        }
+
+        // Users act on their own data; admins may name another user.
+        private static int target(Token t, Number requested) throws HttpError {
+            if (requested == null || requested.intValue() == t.userId) return t.userId;
+            if (!t.admin()) throw new HttpError(403, "Only admins can act on other users");
+            return requested.intValue();
+        }
+
+        private static <T> T await(CompletableFuture<T> f) throws Exception {
+            try { return f.join(); }
+            catch (CompletionException e) { throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e; }
+        }
+
+        private Object login(Token none, Map<String, String> q, Map<String, Object> body) throws Exception {
+            String username = str(body, "username", true);
+            char[] password = str(body, "password", true).toCharArray();
+            User u;
+            try { u = await(auth.login(username, password)); }
+            catch (LoginException e) { throw new HttpError(401, e.getMessage()); }
+            byte[] b = new byte[24];
+            random.nextBytes(b);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+            long now = System.currentTimeMillis();
+            sweepTokens(now);
+            tokens.put(token, new Token(u.id, u.role, now + TOKEN_TTL_MS));
+            Map<String, Object> user = new LinkedHashMap<>();
+            user.put("id", u.id); user.put("username", u.username); user.put("role", u.role);
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("token", token); out.put("expires_in", TOKEN_TTL_MS / 1000); out.put("user", user);
+            return out;
+        }
+
+        private Object createUser(Token t, Map<String, String> q, Map<String, Object> body) throws Exception {
+            if (!t.admin()) throw new HttpError(403, "Admins only");
+            Integer id = db.createUser(str(body, "username", true), str(body, "password", true), "user");
+            if (id == null) throw new HttpError(409, "Username already exists");
+            return Map.of("id", id);
+        }
+
+        private Object listWorkouts(Token t, Map<String, String> q, Map<String, Object> body) throws Exception {
+            Long uid = longParam(q, "user_id"), beforeTs = longParam(q, "before_ts"), beforeId = longParam(q, "before_id"), limit = longParam(q, "limit");
+            int user = target(t, uid);
+            int n = (int) Math.max(1, Math.min(MAX_LIMIT, limit == null ? 50 : limit));
+            Workout after = beforeTs == null || beforeId == null ? null : new Workout(beforeId.intValue(), user, beforeTs, 0, 0, 0, null);
+            List<Workout> page = db.workoutPages(user).fetch(after, n);
+            List<Object> items = new ArrayList<>(page.size());
+            for (Workout w : page) {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("id", w.id); m.put("ts", w.ts); m.put("tz_offset", w.tzOffset); m.put("date", Timestamps.iso(w.ts, w.tzOffset));
+                m.put("duration_seconds", w.durationSeconds); m.put("calories", w.calories); m.put("note", w.note);
+                items.add(m);
+            }
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("workouts", items);
+            Workout last = page.size() == n ? page.get(n - 1) : null;
+            out.put("next", last == null ? null : Map.of("before_ts", last.ts, "before_id", last.id));
+            return out;
+        }
+
+        private Object addWorkout(Token t, Map<String, String> q, Map<String, Object> body) throws Exception {
+            WorkoutRow r = new WorkoutRow();
+            r.userId = target(t, num(body, "user_id", false));
+            r.durationSeconds = num(body, "duration_seconds", true).intValue();
+            r.calories = num(body, "calories", true).doubleValue();
+            if (r.durationSeconds <= 0 || r.calories < 0) throw new HttpError(400, "duration_seconds must be positive and calories non-negative");
+            r.note = body.get("note") == null ? "" : str(body, "note", true);
+            Number ts = num(body, "ts", false), offset = num(body, "tz_offset", false);
+            if (ts == null) Timestamps.now(r);
+            else { r.ts = ts.longValue(); r.tzOffset = offset == null ? Timestamps.offsetAt(r.ts) : offset.intValue(); }
+            try { return Map.of("id", await(db.writeBehind.submit(r))); }
+            catch (SQLException e) { throw new HttpError(400, "Rejected: " + e.getMessage()); }
+        }
+
+        private Object listInstructions(Token t, Map<String, String> q, Map<String, Object> body) throws Exception {
+            Long uid = longParam(q, "user_id");
+            List<Object> items = new ArrayList<>();
+            for (Instruction ins : db.getInstructionsForUser(target(t, uid))) {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("id", ins.id); m.put("ts", ins.ts); m.put("date", Timestamps.iso(ins.ts, ins.tzOffset));
+                m.put("from", ins.adminName); m.put("text", ins.text);
+                items.add(m);
+            }
+            return Map.of("instructions", items);
+        }
+
+        private Object sendInstruction(Token t, Map<String, String> q, Map<String, Object> body) throws Exception {
+            if (!t.admin()) throw new HttpError(403, "Admins only");
+            String text = str(body, "text", true);
+            List<Integer> ids = new ArrayList<>();
+            Object list = body.get("user_ids");
+            if (list instanceof List) for (Object o : (List<?>) list) {
+                if (!(o instanceof Number)) throw new HttpError(400, "user_ids must be numbers");
+                ids.add(((Number) o).intValue());
+            }
+            Number one = num(body, "user_id", false);
+            if (one != null) ids.add(one.intValue());
+            if (ids.isEmpty()) throw new HttpError(400, "user_id or user_ids required");
+            try { return Map.of("sent", db.broadcastInstruction(ids, t.userId, text)); }
+            catch (SQLException e) { throw new HttpError(400, "Rejected: " + e.getMessage()); }
+        }
+
+        private static String option(List<String> args, String name, String def) { return Headless.option(args, name, def); }
+    }
+
+    // Drives a running server with simulated clients. Each client logs in once and then loops over
+    // 60% list workouts, 20% add workout and 20% list instructions until the deadline.
+    static class LoadTest {
+        private static final String PASSWORD = "loadtest-pw";
+
+        static int run(List<String> args) throws Exception {
+            String base = Headless.option(args, "--url", "http://127.0.0.1:8080");
+            int clients = Integer.parseInt(Headless.option(args, "--clients", "50"));
+            int users = Integer.parseInt(Headless.option(args, "--users", "20"));
+            long seconds = Long.parseLong(Headless.option(args, "--duration-s", "30"));
+            String adminName = Headless.option(args, "--admin", "admin");
+            String adminPassword = Headless.option(args, "--admin-password", "admin123");
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+            String admin = login(client, base, adminName, adminPassword);
+            for (int i = 1; i <= users; i++) {
+                HttpResponse<String> r = send(client, post(base + "/api/users", admin, Map.of("username", "loadtest" + i, "password", PASSWORD)));
+                if (r.statusCode() != 200 && r.statusCode() != 409) throw new IOException("Creating loadtest" + i + " failed: " + r.body());
+            }
+            String[] tokens = new String[users];
+            for (int i = 0; i < users; i++) tokens[i] = login(client, base, "loadtest" + (i + 1), PASSWORD);
+
+            String[] names = {"GET /api/workouts", "POST /api/workouts", "GET /api/instructions"};
+            LatencyHistogram[] hist = new LatencyHistogram[names.length];
+            for (int i = 0; i < hist.length; i++) hist[i] = new LatencyHistogram();
+            LatencyHistogram all = new LatencyHistogram();
+            LongAdder errors = new LongAdder();
+            System.out.printf("Running %d clients as %d users against %s for %ds...%n", clients, users, base, seconds);
+            long start = System.nanoTime(), deadline = start + seconds * 1_000_000_000L;
+            ExecutorService pool = Background.daemonPool("loadtest", clients);
+            try {
+                for (int c = 0; c < clients; c++) {
+                    String token = tokens[c % users];
+                    long seed = c;
+                    pool.submit(() -> {
+                        Random rnd = new Random(seed);
+                        while (System.nanoTime() < deadline) {
+                            int pick = rnd.nextInt(10), op = pick < 6 ? 0 : pick < 8 ? 1 : 2;
+                            HttpRequest req = op == 0 ? get(base + "/api/workouts?limit=50", token)
+                                    : op == 1 ? post(base + "/api/workouts", token, Map.of("duration_seconds", 600 + rnd.nextInt(3000), "calories", 50 + rnd.nextInt(600), "note", "loadtest"))
+                                    : get(base + "/api/instructions", token);
+                            long t0 = System.nanoTime();
+                            try {
+                                HttpResponse<String> r = send(client, req);
+                                long d = System.nanoTime() - t0;
+                                if (r.statusCode() != 200) { errors.increment(); continue; }
+                                hist[op].record(d); all.record(d);
+                            } catch (IOException e) { errors.increment(); }
+                        }
+                        return null;
+                    });
+                }
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-24s %10s %10s %10s %10s %10s%n", "operation", "requests", "req/s", "p50 ms", "p99 ms", "max ms");
+            for (int i = 0; i < names.length; i++) row(names[i], hist[i], elapsed);
+            row("all", all, elapsed);
+            System.out.println("errors: " + errors.sum());
+            return errors.sum() == 0 ? 0 : 1;
+        }
+
+        private static void row(String name, LatencyHistogram h, double elapsed) {
+            System.out.printf("%-24s %10d %10.1f %10.2f %10.2f %10.2f%n", name, h.count(), h.count() / elapsed,
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6);
+        }
+
+        private static String login(HttpClient client, String base, String user, String password) throws Exception {
+            HttpResponse<String> r = send(client, post(base + "/api/login", null, Map.of("username", user, "password", password)));
+            if (r.statusCode() != 200) throw new IOException("Login as " + user + " failed: " + r.body());
+            return (String) ((Map<?, ?>) Json.parse(r.body())).get("token");
+        }
+
+        private static HttpRequest get(String url, String token) {
+            return HttpRequest.newBuilder(URI.create(url)).header("Authorization", "Bearer " + token).GET().build();
+        }
+
+        private static HttpRequest post(String url, String token, Map<String, Object> body) {
+            HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url)).header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(Json.write(body)));
+            if (token != null) b.header("Authorization", "Bearer " + token);
+            return b.build();
+        }
+
+        private static HttpResponse<String> send(HttpClient client, HttpRequest req) throws IOException {
+            try { return client.send(req, HttpResponse.BodyHandlers.ofString()); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new IOException(e); }
+        }
+    }
+
+    // Change notifications published by DB writes once they have committed, so views can apply the
+    // one changed row instead of reloading. Listeners run on the publishing thread.
+    static class ChangeBus {
+        enum Kind { WORKOUT_ADDED, WORKOUTS_RELOADED, USER_ADDED, USER_UPDATED, USERS_DELETED, INSTRUCTION_ADDED }
+
+        // row is a Workout, User (profile fields only for USER_UPDATED), Instruction, or the
+        // deleted ids; userId is 0 for WORKOUTS_RELOADED and USERS_DELETED.
+        static class Change {
+            final Kind kind; final int userId; final Object row;
+            Change(Kind kind, int userId, Object row) { this.kind = kind; this.userId = userId; this.row = row; }
+        }
+
+        private final List<java.util.function.Consumer<Change>> listeners = new CopyOnWriteArrayList<>();
+
+        Runnable subscribe(java.util.function.Consumer<Change> l) {
+            listeners.add(l);
+            return () -> listeners.remove(l);
+        }
+
+        void publish(Kind kind, int userId, Object row) {
+            if (listeners.isEmpty()) return;
+            Change c = new Change(kind, userId, row);
+            for (java.util.function.Consumer<Change> l : listeners) {
+                try { l.accept(c); } catch (RuntimeException e) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    // Operation trace for replay. With -Dftracker.trace=FILE every user-facing DB operation, from the
+    // GUI or the server, writes offset_ms,op,user_id[,args...]; user_id 0 means "all users". Offsets
+    // count from this process's start, so each run starts the file over rather than appending to it.
+    static class Trace {
+        static final Trace RECORDER = open(System.getProperty("ftracker.trace"));
+
+        private final CsvWriter out;
+        private final long start = System.nanoTime();
+
+        private Trace(CsvWriter out) { this.out = out; }
+
+        private static Trace open(String file) {
+            if (file == null) return null;
+            try {
+                return new Trace(new CsvWriter(Files.newBufferedWriter(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+            } catch (IOException e) {
+                System.err.println("Tracing disabled: " + e.getMessage());
+                return null;
+            }
+        }
+
+        static void record(String op, int userId, String... args) {
+            if (RECORDER != null) RECORDER.write(op, userId, args);
+        }
+
+        private synchronized void write(String op, int userId, String[] args) {
+            try {
+                out.field((System.nanoTime() - start) / 1_000_000).field(op).field(userId);
+                for (String a : args) out.field(a);
+                out.endRow();
+                out.flush();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Synthetic data at production scale: users with plausible profiles, a heavy-tailed number of
+    // workouts each (mostly at the user's usual hour, weekdays more than weekends, log-normal
+    // durations) and trainer instructions. Users are generated in parallel chunks on a fork-join
+    // pool, seeded per user so the output doesn't depend on the split; one writer drains the chunks
+    // into the batch writer. Generated users log in with password "pw".
+    static class Generator {
+        static final String PASSWORD = "pw";
+        private static final int CHUNK_USERS = 64;
+        private static final String[] ACTIVITIES = {"run", "cycling", "yoga", "HIIT", "strength", "swim", "rowing", "walk"};
+        private static final String[] NOTES = {"", "", "", "knee pain", "asthma", "peanut allergy", "back injury", "diabetes", "pregnant"};
+        private static final String[] INSTRUCTIONS = {
+            "Add a 10 minute warm-up before %s.", "Keep %s sessions under an hour this week.",
+            "Try interval pacing on your next %s.", "Rest day after every hard %s.", "Log how you feel after %s."};
+
+        private static class Chunk {
+            final List<WorkoutRow> workouts = new ArrayList<>();
+            final List<Object[]> instructions = new ArrayList<>();
+        }
+
+        private final int[] ids;
+        private final double[] weights;
+        private final int adminId, workoutsPerUser, instructionsPerUser, days;
+        private final long seed, end = System.currentTimeMillis();
+        private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(16);
+
+        private Generator(int[] ids, double[] weights, int adminId, int workoutsPerUser, int instructionsPerUser, int days, long seed) {
+            this.ids = ids; this.weights = weights; this.adminId = adminId;
+            this.workoutsPerUser = workoutsPerUser; this.instructionsPerUser = instructionsPerUser; this.days = days; this.seed = seed;
+        }
+
+        static int run(List<String> args) throws Exception {
+            DB db = Headless.openDb(args);
+            int users = Integer.parseInt(Headless.option(args, "--users", "1000"));
+            int perUser = Integer.parseInt(Headless.option(args, "--workouts-per-user", "200"));
+            int instrPerUser = Integer.parseInt(Headless.option(args, "--instructions-per-user", "3"));
+            int days = Integer.parseInt(Headless.option(args, "--days", "730"));
+            long seed = Long.parseLong(Headless.option(args, "--seed", "42"));
+            String traceOut = Headless.option(args, "--trace-out", null);
+            int sessions = Integer.parseInt(Headless.option(args, "--trace-sessions", "1000"));
+            int minutes = Integer.parseInt(Headless.option(args, "--trace-minutes", "10"));
+            try {
+                long t0 = System.nanoTime();
+                User admin = db.getUserByUsername("admin");
+                if (admin == null) throw new IllegalStateException("No admin user in " + db.pool.url);
+                double[] weights = new double[users];
+                int[] ids = createUsers(db, users, seed, weights);
+                Generator g = new Generator(ids, weights, admin.id, perUser, instrPerUser, days, seed);
+                long[] written = g.generate(db);
+                double secs = (System.nanoTime() - t0) / 1e9;
+                System.out.printf("Generated %d users, %d workouts, %d instructions in %.1fs (%.0f workouts/s)%n",
+                        users, written[0], written[1], secs, written[0] / secs);
+                if (traceOut != null) {
+                    int n = writeTrace(Paths.get(traceOut), ids, admin.id, sessions, minutes * 60_000L, seed);
+                    System.out.println("Wrote " + n + " trace records to " + traceOut);
+                }
+                return 0;
+            } finally { db.close(); }
+        }
+
+        // Users go in first, in one transaction, so the parallel phase can reference their ids.
+        private static int[] createUsers(DB db, int n, long seed, double[] weights) throws SQLException {
+            String hash = Passwords.hash(PASSWORD.toCharArray(), Passwords.MIN_ITERATIONS);
+            return db.pool.transaction("generate.users", c -> {
+                PreparedStatement ins = c.prepare("INSERT OR IGNORE INTO users(username,password,role,height_cm,weight_kg,health_notes) VALUES(?,?,'user',?,?,?)");
+                try {
+                    for (int i = 0; i < n; i++) {
+                        SplittableRandom rnd = new SplittableRandom(seed * 1_000_003L + i);
+                        double height = Math.round(clamp(170 + 10 * gaussian(rnd), 145, 205));
+                        double bmi = clamp(25 + 4 * gaussian(rnd), 17, 45);
+                        ins.setString(1, "gen" + (i + 1)); ins.setString(2, hash);
+                        ins.setDouble(3, height); ins.setDouble(4, Math.round(bmi * height * height / 1000) / 10.0);
+                        ins.setString(5, NOTES[rnd.nextInt(NOTES.length)]);
+                        ins.addBatch();
+                        if ((i + 1) % DB.IMPORT_BATCH == 0) ins.executeBatch();
+                    }
+                    ins.executeBatch();
+                } finally { ins.clearBatch(); }
+                int[] ids = new int[n];
+                PreparedStatement sel = c.prepare("SELECT id, weight_kg FROM users WHERE username = ?");
+                for (int i = 0; i < n; i++) {
+                    sel.setString(1, "gen" + (i + 1));
+                    try (ResultSet rs = sel.executeQuery()) {
+                        rs.next();
+                        ids[i] = rs.getInt(1);
+                        weights[i] = rs.getObject(2) == null ? 70 : rs.getDouble(2);
+                    }
+                }
+                return ids;
+            });
+        }
+
+        private long[] generate(DB db) throws Exception {
+            ForkJoinPool fj = new ForkJoinPool();
+            long workouts = 0, instructions = 0;
+            try (DB.WorkoutBatchWriter w = db.batchWriter(5000, 200_000, 10_000)) {
+                ForkJoinTask<Void> root = fj.submit(new Split(0, ids.length));
+                while (!root.isDone() || !queue.isEmpty()) {
+                    Chunk c = queue.poll(50, TimeUnit.MILLISECONDS);
+                    if (c == null) continue;
+                    for (WorkoutRow r : c.workouts) w.add(r);
+                    workouts += c.workouts.size();
+                    instructions += insertInstructions(db, c.instructions);
+                }
+                root.get();
+            } finally { fj.shutdownNow(); }
+            return new long[]{workouts, instructions};
+        }
+
+        private class Split extends RecursiveAction {
+            final int from, to;
+            Split(int from, int to) { this.from = from; this.to = to; }
+
+            @Override protected void compute() {
+                if (to - from > CHUNK_USERS) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new Split(from, mid), new Split(mid, to));
+                    return;
+                }
+                Chunk c = new Chunk();
+                for (int i = from; i < to; i++) user(i, c);
+                try {
+                    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                        boolean done;
+                        public boolean block() throws InterruptedException { queue.put(c); return done = true; }
+                        public boolean isReleasable() { return done; }
+                    });
+                } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new CancellationException(); }
+            }
+        }
+
+        private void user(int i, Chunk out) {
+            SplittableRandom rnd = new SplittableRandom(seed * 1_000_003L + i + 0x5DEECE66DL);
+            int n = (int) Math.min(20L * workoutsPerUser, Math.round(-Math.log(1 - rnd.nextDouble()) * workoutsPerUser));
+            int hour = rnd.nextDouble() < 0.55 ? 6 + rnd.nextInt(3) : 17 + rnd.nextInt(4);
+            String favourite = ACTIVITIES[rnd.nextInt(ACTIVITIES.length)];
+            long first = end - days * 86_400_000L;
+            for (int k = 0; k < n; k++) {
+                WorkoutRow r = new WorkoutRow();
+                r.userId = ids[i];
+                LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(first + (long) (rnd.nextDouble() * days * 86_400_000L), 86_400_000L));
+                if (day.getDayOfWeek().getValue() >= 6 && rnd.nextDouble() < 0.5) day = day.minusDays(2);
+                long minute = Math.round(clamp(hour * 60 + 45 * gaussian(rnd), 0, 24 * 60 - 1));
+                r.ts = day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() + minute * 60_000L;
+                if (r.ts > end) r.ts = end - rnd.nextInt(86_400_000);
+                r.tzOffset = Timestamps.offsetAt(r.ts);
+                r.durationSeconds = (int) clamp(2700 * Math.exp(0.4 * gaussian(rnd)), 300, 4 * 3600);
+                double p = rnd.nextDouble();
+                double met = p < 0.4 ? 3.5 : p < 0.8 ? 5.75 : 8.0;
+                r.calories = Math.round(estimateCalories(met, weights[i], r.durationSeconds) * 10) / 10.0;
+                r.note = rnd.nextDouble() < 0.3 ? "" : rnd.nextDouble() < 0.7 ? favourite : ACTIVITIES[rnd.nextInt(ACTIVITIES.length)];
+                out.workouts.add(r);
+            }
+            int m = (int) Math.round(-Math.log(1 - rnd.nextDouble()) * instructionsPerUser);
+            for (int k = 0; k < m; k++) {
+                long ts = end - (long) (rnd.nextDouble() * days * 86_400_000L);
+                String text = String.format(INSTRUCTIONS[rnd.nextInt(INSTRUCTIONS.length)], favourite);
+                out.instructions.add(new Object[]{ids[i], ts, text});
+            }
+        }
+
+        private int insertInstructions(DB db, List<Object[]> rows) throws SQLException {
+            if (rows.isEmpty()) return 0;
+            return db.pool.transaction("generate.instructions", c -> {
+                PreparedStatement ps = c.prepare("INSERT INTO instructions(user_id,admin_id,ts,tz_offset,text) VALUES(?,?,?,?,?)");
+                try {
+                    for (Object[] r : rows) {
+                        long ts = (Long) r[1];
+                        ps.setInt(1, (Integer) r[0]); ps.setInt(2, adminId); ps.setLong(3, ts); ps.setInt(4, Timestamps.offsetAt(ts)); ps.setString(5, (String) r[2]);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                } finally { ps.clearBatch(); }
+                return rows.size();
+            });
+        }
+
+        // Synthetic sessions spread over the window: log in, look at workouts, instructions and stats,
+        // usually save a workout and refresh, sometimes edit the profile or search. An admin
+        // broadcasts now and then.
+        static int writeTrace(Path file, int[] ids, int adminId, int sessions, long windowMs, long seed) throws IOException {
+            SplittableRandom rnd = new SplittableRandom(seed);
+            List<String[]> recs = new ArrayList<>();
+            for (int s = 0; s < sessions; s++) {
+                int i = rnd.nextInt(ids.length);
+                String uid = Integer.toString(ids[i]);
+                long t = (long) (rnd.nextDouble() * windowMs);
+                recs.add(new String[]{Long.toString(t), "login", uid, "gen" + (i + 1)});
+                for (String op : new String[]{"workouts", "instructions", "stats"}) recs.add(new String[]{Long.toString(t += 50 + rnd.nextInt(200)), op, uid});
+                if (rnd.nextDouble() < 0.6) {
+                    int secs = 600 + rnd.nextInt(3600);
+                    recs.add(new String[]{Long.toString(t += 30_000 + rnd.nextInt(90_000)), "submit", uid, Integer.toString(secs), Double.toString(secs / 6.0), ACTIVITIES[rnd.nextInt(ACTIVITIES.length)]});
+                    recs.add(new String[]{Long.toString(t += 100 + rnd.nextInt(400)), "workouts", uid});
+                    recs.add(new String[]{Long.toString(t += 20 + rnd.nextInt(100)), "stats", uid});
+                }
+                if (rnd.nextDouble() < 0.1) recs.add(new String[]{Long.toString(t += 5000 + rnd.nextInt(20_000)), "profile", uid, "175.0", "72.5", NOTES[rnd.nextInt(NOTES.length)]});
+                if (rnd.nextDouble() < 0.15) recs.add(new String[]{Long.toString(t += 2000 + rnd.nextInt(10_000)), "search", uid, ACTIVITIES[rnd.nextInt(ACTIVITIES.length)]});
+            }
+            for (long t = 0; t < windowMs; t += 60_000 + rnd.nextInt(240_000))
+                recs.add(new String[]{Long.toString(t), "instruct", Integer.toString(adminId), "Remember to stretch after every session.", Integer.toString(1 + rnd.nextInt(50))});
+            recs.sort(Comparator.comparingLong(r -> Long.parseLong(r[0])));
+            try (CsvWriter w = new CsvWriter(Files.newBufferedWriter(file))) {
+                for (String[] r : recs) {
+                    for (String f : r) w.field(f);
+                    w.endRow();
+                }
+            }
+            return recs.size();
+        }
+
+        static double gaussian(SplittableRandom rnd) {
+            return Math.sqrt(-2 * Math.log(1 - rnd.nextDouble())) * Math.cos(2 * Math.PI * rnd.nextDouble());
+        }
+
+        static double clamp(double v, double lo, double hi) { return Math.max(lo, Math.min(hi, v)); }
+    }
+
+    // Replays a trace against a DB file, open loop: each record is issued at its recorded offset
+    // (scaled by --speed) or at a fixed --rate, onto a Background.daemonPool of --threads, so slow
+    // operations queue up instead of slowing the schedule. User ids missing from the target DB map
+    // onto its users.
+    static class Replay {
+        static int run(List<String> args) throws Exception {
+            String traceFile = Headless.option(args, "--trace", null);
+            if (traceFile == null) { System.err.println("replay needs --trace FILE"); return 2; }
+            DB db = Headless.openDb(args);
+            double speed = Double.parseDouble(Headless.option(args, "--speed", "1"));
+            double rate = Double.parseDouble(Headless.option(args, "--rate", "0"));
+            int threads = Integer.parseInt(Headless.option(args, "--threads", "64"));
+            String password = Headless.option(args, "--password", Generator.PASSWORD);
+            Auth auth = new Auth(db);
+            try {
+                List<List<String>> recs = new ArrayList<>();
+                try (Reader in = Files.newBufferedReader(Paths.get(traceFile))) {
+                    CsvReader r = new CsvReader(in);
+                    for (List<String> f = new ArrayList<>(); r.next(f); f = new ArrayList<>()) if (f.size() >= 3) recs.add(f);
+                }
+                Map<Integer, String> users = new LinkedHashMap<>();
+                int adminId = db.pool.read("replay.users", c -> {
+                    int admin = 0;
+                    try (ResultSet rs = c.prepare("SELECT id, username, role FROM users ORDER BY id").executeQuery()) {
+                        while (rs.next()) {
+                            if ("admin".equals(rs.getString(3))) { if (admin == 0) admin = rs.getInt(1); }
+                            else users.put(rs.getInt(1), rs.getString(2));
+                        }
+                    }
+                    return admin;
+                });
+                if (users.isEmpty()) { System.err.println("No users to replay as in " + db.pool.url); return 1; }
+                Integer[] userIds = users.keySet().toArray(new Integer[0]);
+
+                Map<String, LatencyHistogram> hist = new ConcurrentSkipListMap<>();
+                LatencyHistogram lag = new LatencyHistogram(), all = new LatencyHistogram();
+                LongAdder failed = new LongAdder();
+                System.out.printf("Replaying %d operations from %s against %s...%n", recs.size(), traceFile, db.pool.url);
+                long start = System.nanoTime();
+                // Operations that find all threads busy wait in the queue; that wait shows up as schedule lag.
+                ExecutorService pool = Background.daemonPool("replay", threads);
+                try {
+                    for (int i = 0; i < recs.size(); i++) {
+                        List<String> f = recs.get(i);
+                        long due = start + (rate > 0 ? (long) (i * 1e9 / rate) : (long) (Long.parseLong(f.get(0)) * 1e6 / speed));
+                        for (long wait; (wait = due - System.nanoTime()) > 0; ) java.util.concurrent.locks.LockSupport.parkNanos(wait);
+                        pool.submit(() -> {
+                            long t0 = System.nanoTime();
+                            lag.record(t0 - due);
+                            boolean ok;
+                            try { ok = execute(db, auth, f, users, userIds, adminId, password); }
+                            catch (Exception e) { ok = false; }
+                            long d = System.nanoTime() - t0;
+                            if (!ok) failed.increment();
+                            hist.computeIfAbsent(f.get(1), k -> new LatencyHistogram()).record(d);
+                            all.record(d);
+                        });
+                    }
+                } finally {
+                    pool.shutdown();
+                    pool.awaitTermination(1, TimeUnit.HOURS);
+                }
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-16s %10s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 ms", "p99 ms", "max ms");
+                for (Map.Entry<String, LatencyHistogram> e : hist.entrySet()) row(e.getKey(), e.getValue(), elapsed);
+                row("all", all, elapsed);
+                System.out.printf("schedule lag p99 %.2f ms, max %.2f ms; failed %d%n", lag.percentile(99) / 1e6, lag.max() / 1e6, failed.sum());
+                return 0;
+            } finally {
+                auth.shutdown();
+                db.close();
+            }
+        }
+
+        private static void row(String name, LatencyHistogram h, double elapsed) {
+            System.out.printf("%-16s %10d %10.1f %10.2f %10.2f %10.2f%n", name, h.count(), h.count() / elapsed,
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6);
+        }
+
+        private static boolean execute(DB db, Auth auth, List<String> f, Map<Integer, String> users, Integer[] userIds, int adminId, String password) throws Exception {
+            int traced = Integer.parseInt(f.get(2));
+            int uid = users.containsKey(traced) ? traced : userIds[Math.floorMod(traced, userIds.length)];
+            String a = f.size() > 3 ? f.get(3) : "", b = f.size() > 4 ? f.get(4) : "", c = f.size() > 5 ? f.get(5) : "";
+            switch (f.get(1)) {
+                case "login":
+                    try { auth.login(users.get(uid), password.toCharArray()).join(); return true; }
+                    catch (CompletionException e) { return false; }
+                case "save": return db.addWorkout(uid, Integer.parseInt(a), Double.parseDouble(b), c) != null;
+                case "submit": {
+                    WorkoutRow r = new WorkoutRow();
+                    r.userId = uid; Timestamps.now(r);
+                    r.durationSeconds = Integer.parseInt(a); r.calories = Double.parseDouble(b); r.note = c;
+                    db.writeBehind.submit(r).join();
+                    return true;
+                }
+                case "workouts": {
+                    PageSource<Workout> src = db.workoutPages(uid);
+                    src.count();
+                    src.fetch(null, PagedTableModel.PAGE_SIZE);
+                    return true;
+                }
+                case "stats": db.getProgressStats(uid); return true;
+                case "instructions": db.getInstructionsForUser(uid); return true;
+                case "profile":
+                    return db.updateProfile(uid, a.isEmpty() ? null : Double.valueOf(a), b.isEmpty() ? null : Double.valueOf(b), c);
+                case "search": db.search(a, traced == 0 ? null : uid, 0, 50); return true;
+                case "instruct": {
+                    int n = Math.min(userIds.length, b.isEmpty() ? 1 : Integer.parseInt(b));
+                    List<Integer> to = new ArrayList<>(n);
+                    int from = ThreadLocalRandom.current().nextInt(userIds.length);
+                    for (int k = 0; k < n; k++) to.add(userIds[(from + k) % userIds.length]);
+                    db.broadcastInstruction(to, adminId, a);
+                    return true;
+                }
+                default: return false;
+            }
+        }
+    }
+
+    // Online snapshots of a live database: <dir>/<name>-<yyyyMMdd-HHmmss>.db, plus .archive when the DB has one,
+    // which is the layout DB opens, so restoring is copying both files back. Snapshots are taken with VACUUM
+    // INTO on a connection of their own, so WAL writers carry on meanwhile. The throttled, page-stepped copy
+    // (stepped) goes through sqlite-jdbc's internal backup call and is only used when that call is present.
+    static class Backup {
+        private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+        private static final String PARTIAL = ".partial";
+
+        static class Result {
+            Path file;
+            long bytes, copyNanos, checkNanos;
+            int steps;
+            String method;
+        }
+
+        final DB db;
+        final Path dir;
+        final String name;
+        int keep = Integer.getInteger("ftracker.backupKeep", 7);
+        int pagesPerStep = Integer.getInteger("ftracker.backupPagesPerStep", 256);
+        long pauseMillis = Long.getLong("ftracker.backupPauseMs", 20);
+        boolean stepped, quickCheck;
+
+        Backup(DB db, Path dir) {
+            Path file = DB.sidecar(db.pool.url, "");
+            if (file == null) throw new IllegalArgumentException("Only file databases can be backed up: " + db.pool.url);
+            this.db = db;
+            this.dir = dir != null ? dir : file.toAbsolutePath().resolveSibling("backups");
+            this.name = file.getFileName().toString().replaceFirst("\\.db$", "");
+        }
+
+        // Default target: -Dftracker.backupDir, else a "backups" folder next to the database.
+        static Backup of(DB db) {
+            String dir = System.getProperty("ftracker.backupDir");
+            return new Backup(db, dir == null ? null : Paths.get(dir));
+        }
+
+        Result run() throws SQLException, IOException {
+            Files.createDirectories(dir);
+            Path out = dir.resolve(name + "-" + STAMP.format(LocalDateTime.now()) + ".db");
+            Path tmp = dir.resolve(out.getFileName() + PARTIAL), tmpArchive = dir.resolve(out.getFileName() + ".archive" + PARTIAL);
+            Result r = new Result();
+            long t0 = System.nanoTime();
+            try {
+                if (stepped && SteppedCopy.available()) { r.method = "page-stepped backup"; SteppedCopy.copy(this, tmp, tmpArchive, r); }
+                else {
+                    if (stepped) System.err.println("Page-stepped backup is not available with this sqlite-jdbc; using VACUUM INTO");
+                    r.method = "VACUUM INTO";
+                    vacuumInto(tmp, tmpArchive);
+                }
+                long t1 = System.nanoTime();
+                r.copyNanos = t1 - t0;
+                check(tmp, tmpArchive);
+                r.checkNanos = System.nanoTime() - t1;
+                if (Files.exists(tmpArchive)) Files.move(tmpArchive, Paths.get(out + ".archive"), StandardCopyOption.ATOMIC_MOVE);
+                Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+                Files.deleteIfExists(tmpArchive);
+            }
+            Metrics.GLOBAL.record("backup.run", System.nanoTime() - t0, true);
+            r.file = out;
+            r.bytes = Files.size(out) + (Files.exists(Paths.get(out + ".archive")) ? Files.size(Paths.get(out + ".archive")) : 0);
+            rotate();
+            return r;
+        }
+
+        // The page-stepped copy uses org.sqlite.core.DB.backup, which is driver-internal rather than JDBC, so
+        // it lives in its own class that is only loaded after available() found the call by reflection.
+        // It runs inside one read transaction, so main and archive come from the same snapshot and concurrent
+        // commits don't restart it, and it pauses between steps so foreground queries keep the disk.
+        private static final class SteppedCopy {
+            static boolean available() {
+                try {
+                    Class<?> observer = Class.forName("org.sqlite.core.DB$ProgressObserver");
+                    Class.forName("org.sqlite.core.DB").getMethod("backup", String.class, String.class, observer, int.class, int.class, int.class);
+                    Class.forName("org.sqlite.SQLiteConnection").getMethod("getDatabase");
+                    return true;
+                } catch (ReflectiveOperationException | LinkageError e) { return false; }
+            }
+
+            static void copy(Backup b, Path tmp, Path tmpArchive, Result r) throws SQLException {
+                DB db = b.db;
+                long pauseMillis = b.pauseMillis;
+                PooledConnection c = db.pool.open(true);
+                try {
+                    c.conn.setAutoCommit(false);
+                    // The first read pins the snapshot for both schemas; the backup steps reuse this transaction
+                    // instead of starting (and restarting after every commit) their own.
+                    try (Statement st = c.conn.createStatement(); ResultSet rs = st.executeQuery("SELECT (SELECT COUNT(*) FROM main.sqlite_master)" +
+                            (db.pool.archive != null ? " + (SELECT COUNT(*) FROM archive.sqlite_master)" : ""))) { rs.next(); }
+                    org.sqlite.core.DB handle = c.conn.unwrap(org.sqlite.SQLiteConnection.class).getDatabase();
+                    org.sqlite.core.DB.ProgressObserver throttle = (remaining, pages) -> {
+                        r.steps++;
+                        if (remaining > 0 && pauseMillis > 0) {
+                            try { Thread.sleep(pauseMillis); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                        }
+                    };
+                    step(handle, "main", tmp, throttle, b.pagesPerStep);
+                    if (db.pool.archive != null) step(handle, "archive", tmpArchive, throttle, b.pagesPerStep);
+                    c.conn.rollback();
+                } finally { c.close(); }
+            }
+
+            private static void step(org.sqlite.core.DB handle, String schema, Path dest, org.sqlite.core.DB.ProgressObserver throttle, int pages) throws SQLException {
+                int rc = handle.backup(schema, dest.toString(), throttle, 100, 50, pages);
+                if (rc != 0) throw new SQLException("Backup of " + schema + " to " + dest + " failed (SQLite error " + rc + ")");
+            }
+        }
+
+        // VACUUM INTO writes its output, so it runs on a connection of its own rather than a query_only
+        // pool reader.
+        private void vacuumInto(Path tmp, Path tmpArchive) throws SQLException {
+            try (Connection c = connect(DB.sidecar(db.pool.url, ""), db.pool.archive, false)) { vacuumInto(c, tmp, tmpArchive); }
+        }
+
+        // Each VACUUM INTO is its own snapshot. Main goes first: an archive pass in between can then only
+        // leave a workout in both files, never in neither; the restored copy's next archive run merges it.
+        private static void vacuumInto(Connection c, Path tmp, Path tmpArchive) throws SQLException {
+            try (Statement st = c.createStatement()) {
+                st.execute("VACUUM main INTO '" + tmp.toString().replace("'", "''") + "'");
+                if (attached(c, "archive")) st.execute("VACUUM archive INTO '" + tmpArchive.toString().replace("'", "''") + "'");
+            }
+        }
+
+        // A plain connection outside the pool and DB's migrations, with the archive attached when it exists.
+        // readOnly opens the files read-only (the attachment inherits it), so nothing can write to them.
+        private static Connection connect(Path file, Path archive, boolean readOnly) throws SQLException {
+            Properties props = new Properties();
+            if (readOnly) props.setProperty("open_mode", "1");
+            Connection c = DriverManager.getConnection("jdbc:sqlite:" + file, props);
+            try (Statement st = c.createStatement()) {
+                st.execute("PRAGMA busy_timeout = 5000");
+                if (archive != null && Files.exists(archive)) st.execute("ATTACH DATABASE '" + archive.toString().replace("'", "''") + "' AS archive");
+            } catch (SQLException e) { c.close(); throw e; }
+            return c;
+        }
+
+        private static boolean attached(Connection c, String schema) throws SQLException {
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("PRAGMA database_list")) {
+                while (rs.next()) if (schema.equals(rs.getString("name"))) return true;
+            }
+            return false;
+        }
+
+        // Snapshots are left in rollback-journal mode so each is a single self-contained file.
+        private void check(Path... files) throws SQLException {
+            for (Path f : files) {
+                if (!Files.exists(f)) continue;
+                try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + f); Statement st = c.createStatement()) {
+                    st.execute("PRAGMA journal_mode = DELETE");
+                    List<String> problems = new ArrayList<>();
+                    try (ResultSet rs = st.executeQuery(quickCheck ? "PRAGMA quick_check" : "PRAGMA integrity_check")) {
+                        while (rs.next()) if (!"ok".equals(rs.getString(1))) problems.add(rs.getString(1));
+                    }
+                    if (!problems.isEmpty()) throw new SQLException("Backup " + f + " failed its integrity check: " + String.join("; ", problems));
+                }
+            }
+        }
+
+        // Keeps the newest `keep` snapshots of this database (timestamps sort by name) and drops leftovers of
+        // copies that died halfway.
+        void rotate() throws IOException {
+            List<Path> snapshots = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, name + "-*")) {
+                for (Path p : ds) {
+                    String f = p.getFileName().toString();
+                    if (f.endsWith(PARTIAL) && Files.getLastModifiedTime(p).toMillis() < System.currentTimeMillis() - 86_400_000L) Files.deleteIfExists(p);
+                    else if (f.matches(java.util.regex.Pattern.quote(name) + "-\\d{8}-\\d{6}\\.db")) snapshots.add(p);
+                }
+            }
+            snapshots.sort(Comparator.reverseOrder());
+            for (Path p : snapshots.subList(Math.min(keep, snapshots.size()), snapshots.size())) {
+                Files.deleteIfExists(Paths.get(p + ".archive"));
+                Files.deleteIfExists(p);
+            }
+        }
+
+        static int run(List<String> args) throws Exception {
+            DB db = Headless.openDb(args);
+            try {
+                Backup b = configure(db, args);
+                Result r = b.run();
+                System.out.printf("Backed up to %s: %.1f MB in %.1fs (%s), %s in %.1fs%n", r.file.toAbsolutePath(), r.bytes / 1e6,
+                        r.copyNanos / 1e9, r.method, b.quickCheck ? "quick_check" : "integrity_check", r.checkNanos / 1e9);
+                return 0;
+            } finally { db.close(); }
+        }
+
+        private static Backup configure(DB db, List<String> args) {
+            String out = Headless.option(args, "--out", System.getProperty("ftracker.backupDir"));
+            Backup b = new Backup(db, out == null ? null : Paths.get(out));
+            b.keep = Integer.parseInt(Headless.option(args, "--keep", Integer.toString(b.keep)));
+            b.pagesPerStep = Integer.parseInt(Headless.option(args, "--pages-per-step", Integer.toString(b.pagesPerStep)));
+            b.pauseMillis = Long.parseLong(Headless.option(args, "--pause-ms", Long.toString(b.pauseMillis)));
+            b.stepped = args.remove("--stepped");
+            b.quickCheck = args.remove("--quick-check");
+            return b;
+        }
+
+        // Times a backup while writers keep adding workouts and readers keep paging history, against the same
+        // load without a backup running. The load needs writes, so it runs on a scratch copy of --db (under
+        // --tmp, default the system temp dir) that is deleted afterwards. The given database is opened
+        // read-only and never through DB, so no migration, optimize or seeding touches it.
+        static int bench(List<String> args) throws Exception {
+            String tmpDir = Headless.option(args, "--tmp", null);
+            Path work = tmpDir == null ? Files.createTempDirectory("ftracker-backup-bench") : Files.createTempDirectory(Paths.get(tmpDir), "ftracker-backup-bench");
+            int writers = Integer.parseInt(Headless.option(args, "--writers", "2"));
+            int readers = Integer.parseInt(Headless.option(args, "--readers", "2"));
+            int baselineSecs = Integer.parseInt(Headless.option(args, "--baseline-s", "10"));
+            Path source = Paths.get(Headless.option(args, "--db", System.getProperty("ftracker.db", "ftracker.db")));
+            if (!Files.isRegularFile(source)) throw new IllegalArgumentException("No database at " + source);
+            DB db = null;
+            try {
+                Path copy = work.resolve(source.getFileName());
+                try (Connection c = connect(source, Paths.get(source + ".archive"), true)) { vacuumInto(c, copy, Paths.get(copy + ".archive")); }
+                System.out.printf("Benchmarking on a copy: %s%n", copy);
+                db = new DB("jdbc:sqlite:" + copy);
+                DB target = db;
+                Backup b = configure(db, args);
+                b.keep = Math.max(b.keep, 1);
+                List<Integer> users = db.pool.read("bench.users", c -> {
+                    List<Integer> ids = new ArrayList<>();
+                    try (ResultSet rs = c.prepare("SELECT id FROM users ORDER BY id LIMIT 1000").executeQuery()) { while (rs.next()) ids.add(rs.getInt(1)); }
+                    return ids;
+                });
+                LatencyHistogram[] base = {new LatencyHistogram(), new LatencyHistogram()}, during = {new LatencyHistogram(), new LatencyHistogram()};
+                AtomicInteger phase = new AtomicInteger();
+                LongAdder errors = new LongAdder();
+                ExecutorService load = Executors.newFixedThreadPool(writers + readers);
+                for (int i = 0; i < writers + readers; i++) {
+                    boolean write = i < writers;
+                    load.submit(() -> {
+                        Random rnd = new Random();
+                        while (phase.get() < 2) {
+                            int uid = users.get(rnd.nextInt(users.size()));
+                            long t0 = System.nanoTime();
+                            try {
+                                if (write) { if (target.addWorkout(uid, 600 + rnd.nextInt(3000), 50 + rnd.nextInt(500), "backup-bench") == null) errors.increment(); }
+                                else target.workoutPages(uid).fetch(null, PagedTableModel.PAGE_SIZE);
+                            } catch (Exception e) { errors.increment(); }
+                            (phase.get() == 0 ? base : during)[write ? 0 : 1].record(System.nanoTime() - t0);
+                        }
+                    });
+                }
+                Thread.sleep(baselineSecs * 1000L);
+                phase.set(1);
+                long t0 = System.nanoTime();
+                Result r = b.run();
+                double secs = (System.nanoTime() - t0) / 1e9;
+                phase.set(2);
+                load.shutdown();
+                load.awaitTermination(30, TimeUnit.SECONDS);
+                System.out.printf("backup %s: %.1f MB, copy %.1fs (%.1f MB/s, %s%s), check %.1fs%n",
+                        r.file.getFileName(), r.bytes / 1e6, r.copyNanos / 1e9, r.bytes / 1e6 / (r.copyNanos / 1e9), r.method,
+                        r.steps > 0 ? String.format(", %d steps of %d pages, %d ms pause", r.steps, b.pagesPerStep, b.pauseMillis) : "", r.checkNanos / 1e9);
+                System.out.printf("%-24s %10s %10s %10s %10s %10s%n", "operation", "requests", "req/s", "p50 ms", "p99 ms", "max ms");
+                row("addWorkout (baseline)", base[0], baselineSecs);
+                row("addWorkout (backup)", during[0], secs);
+                row("workout page (baseline)", base[1], baselineSecs);
+                row("workout page (backup)", during[1], secs);
+                System.out.println("errors: " + errors.sum());
+                return errors.sum() == 0 ? 0 : 1;
+            } finally {
+                if (db != null) db.close();
+                try (java.util.stream.Stream<Path> files = Files.walk(work)) {
+                    for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+                }
+            }
+        }
+
+        private static void row(String name, LatencyHistogram h, double elapsed) {
+            System.out.printf("%-24s %10d %10.1f %10.2f %10.2f %10.2f%n", name, h.count(), h.count() / elapsed,
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6);
+        }
+    }
+
+    // Regression checks that need a real database but no display: run against a scratch file, print one
+    // line per check, exit non-zero if any fails.
+    static class SelfTest {
+        private int failed;
+
+        static int run(List<String> args) throws Exception {
+            Path dir = Files.createTempDirectory("ftracker-selftest");
+            DB db = new DB("jdbc:sqlite:" + dir.resolve("selftest.db"));
+            SelfTest t = new SelfTest();
+            try {
+                t.instructionStatements(db);
+                t.queryPlans(db);
+            } finally {
+                db.close();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) { for (Path p : ds) Files.deleteIfExists(p); }
+                Files.deleteIfExists(dir);
+            }
+            System.out.println(t.failed == 0 ? "selftest: all checks passed" : "selftest: " + t.failed + " check(s) failed");
+            return t.failed == 0 ? 0 : 1;
+        }
+
+        private void check(String name, boolean ok, String detail) {
+            System.out.printf("%s %s%s%n", ok ? "PASS" : "FAIL", name, detail == null || detail.isEmpty() ? "" : " (" + detail + ")");
+            if (!ok) failed++;
+        }
+
+        private static long statements(Runnable r) {
+            long before = Metrics.GLOBAL.statements.sum();
+            r.run();
+            return Metrics.GLOBAL.statements.sum() - before;
+        }
+
+        // Loading a user's instructions, admin names included, costs the same number of statements for 1 or N.
+        private void instructionStatements(DB db) throws SQLException {
+            int adminId = db.getUserByUsername("admin").id;
+            Integer one = db.createUser("selftest-one", "pw", "user"), many = db.createUser("selftest-many", "pw", "user");
+            db.broadcastInstruction(List.of(one), adminId, "only instruction");
+            for (int i = 0; i < 200; i++) db.broadcastInstruction(List.of(many), adminId, "instruction " + i);
+            long s1 = statements(() -> { for (Instruction ins : db.getInstructionsForUser(one)) if (ins.adminName == null) throw new IllegalStateException(); });
+            long sN = statements(() -> { for (Instruction ins : db.getInstructionsForUser(many)) if (ins.adminName == null) throw new IllegalStateException(); });
+            check("instructions load in O(1) statements", s1 == sN, "1 instruction: " + s1 + ", 200 instructions: " + sN);
+        }
+
+        // Every indexed query DB prepares, by the same constant, with the index its plan must use; a
+        // full table scan or a sort step means an index went missing or stopped matching. A third
+        // column marks the few whose sort is inherent (bm25 rank, computed week, rows since a mark).
+        private static String[][] plans(DB db) {
+            String users = "INTEGER PRIMARY KEY", userTs = "INDEX idx_workouts_user_ts", segs = "INDEX idx_workout_segments_user_last";
+            return new String[][] {
+                {DB.USER_BY_NAME, "INDEX sqlite_autoindex_users_1"},
+                {DB.USER_BY_ID, users},
+                {DB.USERNAME_BY_ID, users},
+                {DB.UPDATE_PASSWORD, users},
+                {DB.UPDATE_PROFILE, users},
+                {DB.DELETE_USER, users},
+                {DB.usersAfterSql(false, true), users},
+                {DB.usersAfterSql(true, true), users},
+                {DB.SETTING, "PRIMARY KEY"},
+                {DB.WORKOUTS_FOR_USER, userTs},
+                {DB.WORKOUTS_BETWEEN, userTs},
+                {DB.WORKOUT_SERIES, userTs},
+                {DB.workoutsAfterSql(false, false), userTs},
+                {DB.workoutsAfterSql(false, true), userTs},
+                {DB.workoutsAfterSql(true, false), userTs},
+                {DB.workoutsAfterSql(true, true), userTs},
+                {DB.EXPORT_USER, userTs},
+                {DB.EXPORT_ALL, userTs},
+                {DB.ARCHIVE_CANDIDATES, userTs},
+                {DB.ARCHIVE_ROWS, userTs},
+                {DB.DELETE_WORKOUT, users},
+                {db.countWorkouts, userTs},
+                {db.segmentsBetween, segs},
+                {db.segmentsBefore, segs},
+                {db.segmentForMonth, "INDEX sqlite_autoindex_workout_segments_1"},
+                {db.deleteSegments, segs},
+                {DB.DAILY_BETWEEN, "PRIMARY KEY"},
+                {DB.WEEKLY_BETWEEN, "PRIMARY KEY"},
+                {DB.WEEKLY_SINCE, "PRIMARY KEY"},
+                {DB.TOTALS_FOR_USER, users},
+                {DB.INTENSITY_MIX, userTs, "sort"},
+                {DB.INSTRUCTIONS_FOR_USER, "INDEX idx_instructions_user_ts"},
+                {DB.INSTRUCTIONS_SINCE, "INDEX idx_instructions_user_ts", "sort"},
+                {DB.INSTRUCTION_MARK, "INDEX idx_instructions_user_ts"},
+                {DB.searchSql(false), "VIRTUAL TABLE INDEX", "sort"},
+                {DB.searchSql(true), "VIRTUAL TABLE INDEX", "sort"},
+            };
+        }
+
+        private void queryPlans(DB db) throws SQLException {
+            for (String[] q : plans(db)) {
+                String plan = db.pool.read("selftest.plan", c -> {
+                    StringBuilder sb = new StringBuilder();
+                    try (Statement st = c.conn.createStatement(); ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + q[0])) {
+                        while (rs.next()) sb.append(sb.length() > 0 ? "; " : "").append(rs.getString("detail"));
+                    }
+                    return sb.toString();
+                });
+                boolean ok = plan.contains(q[1]) && !plan.matches("(?s).*\\bSCAN \\w+(;.*)?$") && (q.length > 2 || !plan.contains("TEMP B-TREE"));
+                check("plan uses " + q[1] + ": " + q[0], ok, ok ? "" : plan);
+            }
+        }
+    }
+
+    static class Bench {
+        interface Op { Object run() throws Exception; }
+
+        private static volatile Object sink;
+        private final List<String> json = new ArrayList<>();
+        private final int warmups, iterations;
+        private final long iterationNanos;
+
+        Bench(int warmups, int iterations, long iterationMillis) {
+            this.warmups = warmups; this.iterations = iterations; this.iterationNanos = iterationMillis * 1_000_000L;
+        }
+
+        static int run(List<String> args) throws Exception {
+            String sizes = Headless.option(args, "--sizes", "10000");
+            String out = Headless.option(args, "--out", "bench-results.json");
+            String dir = Headless.option(args, "--fixtures", ".");
+            Bench b = new Bench(Integer.parseInt(Headless.option(args, "--warmup", "2")),
+                    Integer.parseInt(Headless.option(args, "--iterations", "5")),
+                    Long.parseLong(Headless.option(args, "--iteration-ms", "1000")));
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                DB db = fixture(Paths.get(dir, "bench_" + n + ".db"), n);
+                try { b.dbBenchmarks(db, n); } finally { db.close(); }
+            }
+            b.computeBenchmarks();
+            Files.writeString(Paths.get(out), "[\n" + String.join(",\n", b.json) + "\n]\n");
+            System.out.println("Wrote " + b.json.size() + " results to " + out);
+            return 0;
+        }
+
+        static final int FIXTURE_USERS = 100;
+
+        // Reuses an existing fixture file when it already holds the requested row count.
+        static DB fixture(Path file, int workouts) throws SQLException {
+            DB db = new DB("jdbc:sqlite:" + file);
+            int have = db.pool.read("bench.fixture", c -> {
+                try (ResultSet rs = c.prepare("SELECT COUNT(*) FROM workouts").executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+            });
+            if (have >= workouts) return db;
+            System.out.println("Generating " + file + " (" + workouts + " workouts)...");
+            String hash = Passwords.hash("pw".toCharArray(), Passwords.MIN_ITERATIONS);
+            for (int u = 1; u <= FIXTURE_USERS; u++) if (db.getUserByUsername("bench" + u) == null) db.createUserWithHash("bench" + u, hash, "user");
+            int[] ids = new int[FIXTURE_USERS];
+            for (int u = 0; u < FIXTURE_USERS; u++) ids[u] = db.getUserByUsername("bench" + (u + 1)).id;
+            Random rnd = new Random(42);
+            long start = System.currentTimeMillis() - 3 * 365 * 86_400_000L;
+            try (DB.WorkoutBatchWriter w = db.batchWriter(5000, 200_000, 60_000)) {
+                WorkoutRow r = new WorkoutRow();
+                for (int i = have; i < workouts; i++) {
+                    r.userId = ids[rnd.nextInt(FIXTURE_USERS)];
+                    r.ts = start + rnd.nextInt(3 * 365 * 86400) * 1000L;
+                    r.tzOffset = Timestamps.offsetAt(r.ts);
+                    r.durationSeconds = 600 + rnd.nextInt(5400);
+                    r.calories = estimateCalories(3.5 + rnd.nextInt(3) * 2.25, 70, r.durationSeconds);
+                    r.note = "session " + i;
+                    w.add(r);
+                }
+            }
+            return db;
+        }
+
+        void dbBenchmarks(DB db, int n) throws Exception {
+            String params = "{\"workouts\": \"" + n + "\"}";
+            int uid = db.getUserByUsername("bench1").id;
+            Random rnd = new Random(7);
+            measure("DB.getWorkoutsForUser", params, () -> db.getWorkoutsForUser(uid));
+            measure("DB.workoutPages.firstPage", params, () -> db.workoutPages(uid).fetch(null, PagedTableModel.PAGE_SIZE));
+            measure("DB.getUserByUsername", params, () -> db.getUserByUsername("bench" + (1 + rnd.nextInt(FIXTURE_USERS))));
+            measure("DB.listUsers", params, db::listUsers);
+            measure("DB.exportWorkoutsCsv", params, () -> db.exportWorkoutsCsv(uid, Writer.nullWriter()));
+            long to = System.currentTimeMillis(), from = to - 30 * 86_400_000L;
+            measure("DB.getWorkoutsBetween.30d", params, () -> db.getWorkoutsBetween(uid, from, to));
+            legacyCopy(db);
+            String fromText = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(Timestamps.local(from, Timestamps.offsetAt(from)));
+            String toText = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(Timestamps.local(to, Timestamps.offsetAt(to)));
+            measure("legacyTextDate.range.30d", params, () -> db.pool.read("bench.legacyRange", c -> {
+                PreparedStatement ps = c.prepare("SELECT * FROM bench_legacy_workouts WHERE user_id = ? AND date >= ? AND date < ? ORDER BY date DESC, id DESC");
+                ps.setInt(1, uid); ps.setString(2, fromText); ps.setString(3, toText);
+                List<Workout> out = new ArrayList<>();
+                WorkoutRow t = new WorkoutRow();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Timestamps.parse(rs.getString("date"), t);
+                        out.add(new Workout(rs.getInt("id"), rs.getInt("user_id"), t.ts, t.tzOffset, rs.getInt("duration_seconds"), rs.getDouble("calories"), rs.getString("note")));
+                    }
+                }
+                return out;
+            }));
+            long now = System.currentTimeMillis() / 1000, day = now - now % 86400;
+            measure("AnalyticsStore.load", params, () -> { db.analytics.invalidate(uid); return db.analytics.columns(uid).size(); });
+            measure("WorkoutColumns.range.90d", params, () -> db.analytics.columns(uid).range(now - 90 * 86400L, now));
+            measure("WorkoutColumns.movingAverage.7x365", params, () -> db.analytics.columns(uid).movingAverageKcal(day - 365 * 86400L, 365, 7));
+            measure("WorkoutColumns.p90", params, () -> db.analytics.columns(uid).percentileSeconds(Long.MIN_VALUE, Long.MAX_VALUE, 90));
+            measure("DB.search.rare", params, () -> db.search(Integer.toString(rnd.nextInt(n)), null, 0, 50));
+            measure("DB.search.rare.ownData", params, () -> db.search(Integer.toString(rnd.nextInt(n)), uid, 0, 50));
+            measure("RecommendationEngine.seed", params, () -> { db.recommendations.invalidate(uid); return db.recommendations.text(uid); });
+            measure("RecommendationEngine.cached", params, () -> db.recommendations.text(uid));
+            int writer = db.getUserByUsername("bench" + FIXTURE_USERS).id;
+            db.recommendations.text(writer);
+            measure("DB.addWorkout", params, () -> db.addWorkout(writer, 1800, 250.0, "bench"));
+            WorkoutRow r = new WorkoutRow();
+            r.userId = writer; Timestamps.now(r); r.durationSeconds = 1800; r.calories = 250.0;
+            measure("RecommendationEngine.onWorkout", params, () -> { db.recommendations.onWorkout(r); return db.recommendations.text(writer); });
+        }
+
+        // The pre-epoch-millis layout (ISO text date, indexed with user_id), kept beside the real table
+        // so the range benchmark has a baseline.
+        static void legacyCopy(DB db) throws SQLException {
+            db.pool.write("bench.fixture", c -> {
+                try (Statement st = c.conn.createStatement()) {
+                    long want, have = -1;
+                    try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM workouts")) { want = rs.next() ? rs.getLong(1) : 0; }
+                    try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM bench_legacy_workouts")) { have = rs.next() ? rs.getLong(1) : 0; }
+                    catch (SQLException missing) { /* not created yet */ }
+                    if (have == want) return null;
+                    st.execute("DROP TABLE IF EXISTS bench_legacy_workouts");
+                    st.execute("CREATE TABLE bench_legacy_workouts AS SELECT id, user_id, strftime('%Y-%m-%dT%H:%M:%S', ts / 1000 + tz_offset, 'unixepoch') AS date, " +
+                            "duration_seconds, calories, note FROM workouts");
+                    st.execute("CREATE INDEX bench_legacy_user_date ON bench_legacy_workouts(user_id, date)");
+                }
+                return null;
+            });
+        }
+
+        void computeBenchmarks() throws Exception {
+            measure("estimateCalories", "{}", () -> estimateCalories(6.0, 82.5, 1800));
+            measure("bmi", "{}", () -> bmi(178.0, 82.5));
+            RecommendationEngine.State st = new RecommendationEngine.State();
+            st.profile(178.0, 82.5, "mild knee pain");
+            LocalDate today = LocalDate.now();
+            for (int i = 0; i < 40; i++) st.add(today.minusDays(i), 1800, estimateCalories(3.5 + i % 3 * 2.25, 82.5, 1800));
+            measure("RecommendationEngine.render", "{}", () -> st.render(today));
+        }
+
+        void measure(String name, String params, Op op) throws Exception {
+            for (int i = 0; i < warmups; i++) iteration(op);
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) scores[i] = iteration(op);
+            double mean = Arrays.stream(scores).average().orElse(0);
+            double sd = Math.sqrt(Arrays.stream(scores).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, iterations - 1));
+            System.out.printf("%-32s %-22s %14.3f +- %.3f ops/s%n", name, params, mean, sd);
+            StringBuilder raw = new StringBuilder();
+            for (double x : scores) raw.append(raw.length() == 0 ? "" : ", ").append(x);
+            json.add("  {\"benchmark\": \"" + name + "\", \"mode\": \"thrpt\", \"warmupIterations\": " + warmups +
+                    ", \"measurementIterations\": " + iterations + ", \"params\": " + params +
+                    ", \"primaryMetric\": {\"score\": " + mean + ", \"scoreError\": " + sd +
+                    ", \"scoreUnit\": \"ops/s\", \"rawData\": [[" + raw + "]]}}");
+        }
+
+        private double iteration(Op op) throws Exception {
+            long ops = 0, t0 = System.nanoTime(), elapsed;
+            do { sink = op.run(); ops++; } while ((elapsed = System.nanoTime() - t0) < iterationNanos);
+            return ops * 1e9 / elapsed;
+        }
+    }
+
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        // Log-linear buckets: 32 linear sub-buckets per power of two, so any value is within ~3%.
+        static int index(long v) {
+            if (v < 2 * SUB) return (int) Math.max(v, 0);
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return shift * SUB + (int) (v >>> shift);
+        }
+
+        static long lowerBound(int i) {
+            if (i < 2 * SUB) return i;
+            int shift = i / SUB - 1;
+            return (long) (i % SUB + SUB) << shift;
+        }
+
+        void record(long v) {
+            counts.incrementAndGet(index(v));
+            count.increment(); sum.add(v);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        long count() { return count.sum(); }
+        long max() { return max.get(); }
+        double mean() { long n = count.sum(); return n == 0 ? 0 : (double) sum.sum() / n; }
+
+        long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long target = (long) Math.ceil(p / 100.0 * n), seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, target)) return Math.min(max.get(), (lowerBound(i) + lowerBound(i + 1) - 1) / 2);
+            }
+            return max.get();
+        }
+    }
+
+    static class Metrics {
+        static final Metrics GLOBAL = new Metrics();
+        private static final int SLOW_LOG_SIZE = 200;
+
+        static class Op {
+            final LatencyHistogram latency = new LatencyHistogram();
+            final LongAdder errors = new LongAdder();
+        }
+
+        private final Map<String, Op> ops = new ConcurrentHashMap<>();
+        private final Deque<String> slowLog = new ArrayDeque<>();
+        // Statements issued through PooledConnection.prepare (a batch counts once).
+        final LongAdder statements = new LongAdder();
+        volatile long slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ftracker.slowQueryMs", 50));
+
+        void record(String name, long nanos, boolean ok) {
+            Op op = ops.computeIfAbsent(name, k -> new Op());
+            op.latency.record(nanos);
+            if (!ok) op.errors.increment();
+        }
+
+        <T> CompletableFuture<T> track(String name, CompletableFuture<T> f) {
+            long t0 = System.nanoTime();
+            f.whenComplete((v, t) -> record(name, System.nanoTime() - t0, t == null));
+            return f;
+        }
+
+        java.awt.event.ActionListener timed(String name, Runnable action) {
+            return e -> {
+                long t0 = System.nanoTime();
+                boolean ok = false;
+                try { action.run(); ok = true; }
+                finally { record(name, System.nanoTime() - t0, ok); }
+            };
+        }
+
+        // Logs the pool operation and the last statement it prepared; bind values are never logged since
+        // they include password hashes and personal notes.
+        void slowQuery(String op, String lastSql, long nanos) {
+            String entry = LocalDateTime.now() + String.format(" %.1fms ", nanos / 1e6) + op + (lastSql != null ? " -- last: " + lastSql : "");
+            System.err.println("SLOW SQL " + entry);
+            synchronized (slowLog) {
+                slowLog.addFirst(entry);
+                if (slowLog.size() > SLOW_LOG_SIZE) slowLog.removeLast();
+            }
+        }
+
+        void reset() {
+            ops.clear();
+            statements.reset();
+            synchronized (slowLog) { slowLog.clear(); }
+        }
+
+        String report() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-44s %9s %7s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+            new TreeMap<>(ops).forEach((name, op) -> {
+                LatencyHistogram h = op.latency;
+                sb.append(String.format("%-44s %9d %7d %9.3f %9.3f %9.3f %9.3f %9.3f%n", name.length() > 44 ? name.substring(0, 41) + "..." : name,
+                        h.count(), op.errors.sum(), h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                        h.percentile(99) / 1e6, h.max() / 1e6));
+            });
+            sb.append(String.format("%nStatements prepared: %d%n", statements.sum()));
+            sb.append(String.format("%nSlow SQL (>= %d ms):%n", TimeUnit.NANOSECONDS.toMillis(slowQueryNanos)));
+            synchronized (slowLog) { for (String s : slowLog) sb.append(s).append('\n'); }
+            return sb.toString();
+        }
+
+        Path dump(Path dir) throws IOException {
+            Path f = dir.resolve("ftracker-metrics-" + DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").format(LocalDateTime.now()) + ".txt");
+            Files.writeString(f, report());
+            return f;
+        }
+    }
+
+    static class Passwords {
+        static final int MIN_ITERATIONS = 100_000;
+        static final long LOGIN_TARGET_MS = Long.getLong("ftracker.loginTargetMs", 250);
+        private static final String PREFIX = "pbkdf2-sha256$";
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        static String hash(char[] password, int iterations) {
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+            return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(password, salt, iterations));
+        }
+
+        // Rows written before hashing was introduced hold the plaintext password.
+        static boolean verify(String stored, char[] password) {
+            if (stored == null) return false;
+            if (!stored.startsWith(PREFIX))
+                return MessageDigest.isEqual(stored.getBytes(java.nio.charset.StandardCharsets.UTF_8),
+                        new String(password).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            String[] parts = stored.split("\\$");
+            if (parts.length != 4) return false;
+            Base64.Decoder b64 = Base64.getDecoder();
+            return MessageDigest.isEqual(b64.decode(parts[3]), derive(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+        }
+
+        static boolean needsRehash(String stored, int iterations) {
+            if (stored == null || !stored.startsWith(PREFIX)) return true;
+            String[] parts = stored.split("\\$");
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        }
+
+        static byte[] derive(char[] password, byte[] salt, int iterations) {
+            try {
+                SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                return f.generateSecret(new PBEKeySpec(password, salt, iterations, 256)).getEncoded();
+            } catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+        }
+
+        static int calibrate(long targetMillis) {
+            char[] pw = "calibration-password".toCharArray();
+            byte[] salt = new byte[16];
+            int probe = 20_000;
+            derive(pw, salt, probe);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long t0 = System.nanoTime();
+                derive(pw, salt, probe);
+                best = Math.min(best, System.nanoTime() - t0);
+            }
+            long iterations = probe * targetMillis * 1_000_000L / Math.max(best, 1);
+            return (int) Math.max(MIN_ITERATIONS, Math.min(iterations, 10_000_000L));
+        }
+    }
+
+    static class LoginException extends Exception {
+        LoginException(String message) { super(message); }
+    }
+
+    static class Auth {
+        private static final int MAX_FAILURES = 5;
+        private static final long LOCKOUT_BASE_MS = 2_000, LOCKOUT_MAX_MS = 5 * 60_000;
+        private static final long SESSION_TTL_MS = 10 * 60_000;
+
+        private static class Attempts { int failures; long lockedUntil; }
+        private static class Session { final byte[] tag; final long expires; Session(byte[] tag, long expires) { this.tag = tag; this.expires = expires; } }
+
+        private final DB db;
+        private final ExecutorService hashPool = Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), r -> {
+            Thread t = new Thread(r, "password-hash"); t.setDaemon(true); return t;
+        });
+        // Both maps are keyed only by usernames that exist, and expired sessions are swept on login,
+        // so random names from a server client cannot grow them.
+        private final Map<String, Attempts> attempts = new ConcurrentHashMap<>();
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        private final AtomicLong lastSweep = new AtomicLong();
+        private final byte[] sessionKey = new byte[32];
+
+        Auth(DB db) { this.db = db; new SecureRandom().nextBytes(sessionKey); }
+
+        CompletableFuture<User> login(String username, char[] password) {
+            return CompletableFuture.supplyAsync(() -> {
+                try { return authenticate(username, password); }
+                catch (LoginException e) { throw new CompletionException(e); }
+            }, hashPool);
+        }
+
+        User authenticate(String username, char[] password) throws LoginException {
+            long now = System.currentTimeMillis();
+            Attempts a = attempts.get(username);
+            if (a != null && a.lockedUntil > now)
+                throw new LoginException("Too many failed attempts. Try again in " + ((a.lockedUntil - now + 999) / 1000) + "s.");
+            sweepSessions(now);
+            User u = db.getUserByUsername(username);
+            if (u == null) {
+                Passwords.derive(password, new byte[16], db.passwordIterations());
+                throw new LoginException("Invalid credentials.");
+            }
+            byte[] tag = sessionTag(username, password, u.password);
+            Session s = sessions.get(username);
+            boolean ok = s != null && s.expires > now && MessageDigest.isEqual(s.tag, tag);
+            if (!ok) {
+                if (!Passwords.verify(u.password, password)) { sessions.remove(username); throw fail(username); }
+                int iterations = db.passwordIterations();
+                if (Passwords.needsRehash(u.password, iterations)) {
+                    String rehashed = Passwords.hash(password, iterations);
+                    if (db.updatePassword(u.id, rehashed)) { u.password = rehashed; tag = sessionTag(username, password, rehashed); }
+                }
+                sessions.put(username, new Session(tag, now + SESSION_TTL_MS));
+            }
+            attempts.remove(username);
+            Trace.record("login", u.id, username);
+            return u;
+        }
+
+        private LoginException fail(String username) {
+            Attempts a = attempts.computeIfAbsent(username, k -> new Attempts());
+            synchronized (a) {
+                a.failures++;
+                if (a.failures >= MAX_FAILURES) {
+                    long delay = Math.min(LOCKOUT_MAX_MS, LOCKOUT_BASE_MS << Math.min(16, a.failures - MAX_FAILURES));
+                    a.lockedUntil = System.currentTimeMillis() + delay;
+                }
+            }
+            return new LoginException("Invalid credentials.");
+        }
+
+        private void sweepSessions(long now) {
+            long last = lastSweep.get();
+            if (now - last < 60_000 || !lastSweep.compareAndSet(last, now)) return;
+            sessions.values().removeIf(s -> s.expires <= now);
+        }
+
+        // Keyed hash of the credentials, so a repeat login within the TTL skips PBKDF2.
+        private byte[] sessionTag(String username, char[] password, String storedHash) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+                mac.update((username + '\0' + new String(password) + '\0' + storedHash).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                return mac.doFinal();
+            } catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+        }
+
+        void invalidate(String username) { sessions.remove(username); }
+
+        void shutdown() { hashPool.shutdown(); }
+    }
+
+    interface SqlWork<T> { T run(PooledConnection c) throws SQLException; }
+
+    static class PooledConnection {
+        private static final int STMT_CACHE_SIZE = 64;
+        final Connection conn;
+        private final Map<String, PreparedStatement> stmts = new LinkedHashMap<>(32, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> e) {
+                if (size() <= STMT_CACHE_SIZE) return false;
+                try { e.getValue().close(); } catch (SQLException ignored) {}
+                return true;
+            }
+        };
+        String lastSql;
+        PooledConnection(Connection conn) { this.conn = conn; }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            Metrics.GLOBAL.statements.increment();
+            lastSql = sql;
+            PreparedStatement ps = stmts.get(sql);
+            if (ps == null) { ps = conn.prepareStatement(sql); stmts.put(sql, ps); }
+            else ps.clearParameters();
+            return ps;
+        }
+
+        int lastInsertId() throws SQLException {
+            try (ResultSet rs = prepare("SELECT last_insert_rowid()").executeQuery()) { return rs.next() ? rs.getInt(1) : -1; }
+        }
+
+        void close() {
+            for (PreparedStatement ps : stmts.values()) { try { ps.close(); } catch (SQLException ignored) {} }
+            stmts.clear();
+            try { conn.close(); } catch (SQLException ignored) {}
+        }
+    }
+
+    static class ConnectionPool {
+        final String url;
+        private final int maxReaders;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final BlockingQueue<PooledConnection> idleReaders;
+        private final AtomicInteger openReaders = new AtomicInteger();
+        private PooledConnection writer;
+        private volatile boolean closed;
+        final Path archive;
+
+        ConnectionPool(String url, int maxReaders) { this(url, maxReaders, null); }
+
+        // archive, if given, is attached to every connection as schema "archive".
+        ConnectionPool(String url, int maxReaders, Path archive) {
+            this.url = url; this.maxReaders = maxReaders; this.archive = archive;
+            this.idleReaders = new ArrayBlockingQueue<>(maxReaders);
+        }
+
+        private PooledConnection open(boolean readOnly) throws SQLException {
+            Connection c = DriverManager.getConnection(url);
+            try (Statement st = c.createStatement()) {
+                // auto_vacuum only sticks on an empty file before WAL is switched on; older files are
+                // converted by DB.enableIncrementalVacuum.
+                if (!readOnly) st.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                if (!readOnly) st.execute("PRAGMA journal_mode = WAL");
+                st.execute("PRAGMA synchronous = NORMAL");
+                st.execute("PRAGMA foreign_keys = ON");
+                st.execute("PRAGMA busy_timeout = 5000");
+                if (archive != null) {
+                    st.execute("ATTACH DATABASE '" + archive.toString().replace("'", "''") + "' AS archive");
+                    if (!readOnly) {
+                        st.execute("PRAGMA archive.auto_vacuum = INCREMENTAL");
+                        st.execute("PRAGMA archive.journal_mode = WAL");
+                    }
+                }
+                if (readOnly) st.execute("PRAGMA query_only = ON");
+            }
+            return new PooledConnection(c);
+        }
+
+        <T> T read(String op, SqlWork<T> work) throws SQLException {
+            long t0 = System.nanoTime();
+            PooledConnection c = idleReaders.poll();
+            try {
+                if (c == null && openReaders.incrementAndGet() <= maxReaders) {
+                    try { c = open(true); } catch (SQLException e) { openReaders.decrementAndGet(); throw e; }
+                } else if (c == null) {
+                    openReaders.decrementAndGet();
+                    c = idleReaders.poll(10, TimeUnit.SECONDS);
+                    if (c == null) throw new SQLException("Timed out waiting for a reader connection");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a reader connection", e);
+            }
+            Metrics.GLOBAL.record("pool.acquire.read", System.nanoTime() - t0, true);
+            boolean ok = false;
+            c.lastSql = null;
+            try { T out = work.run(c); ok = true; return out; }
+            finally {
+                done(op, t0, ok, c.lastSql);
+                if (closed) { c.close(); openReaders.decrementAndGet(); }
+                else idleReaders.offer(c);
+            }
+        }
+
+        <T> T write(String op, SqlWork<T> work) throws SQLException {
+            long t0 = System.nanoTime();
+            writeLock.lock();
+            boolean ok = false;
+            String lastSql = null;
+            try {
+                if (writer == null) writer = open(false);
+                Metrics.GLOBAL.record("pool.acquire.write", System.nanoTime() - t0, true);
+                writer.lastSql = null;
+                T out = work.run(writer);
+                ok = true;
+                return out;
+            } finally {
+                if (writer != null) lastSql = writer.lastSql;
+                writeLock.unlock();
+                done(op, t0, ok, lastSql);
+            }
+        }
+
+        private static void done(String op, long t0, boolean ok, String lastSql) {
+            long ns = System.nanoTime() - t0;
+            Metrics.GLOBAL.record(op, ns, ok);
+            if (ns >= Metrics.GLOBAL.slowQueryNanos) Metrics.GLOBAL.slowQuery(op, lastSql, ns);
+        }
+
+        <T> T transaction(String op, SqlWork<T> work) throws SQLException {
+            return write(op, c -> {
+                c.conn.setAutoCommit(false);
+                try {
+                    T out = work.run(c);
+                    c.conn.commit();
+                    return out;
+                } catch (SQLException | RuntimeException e) {
+                    c.conn.rollback();
+                    throw e;
+                } finally { c.conn.setAutoCommit(true); }
+            });
+        }
+
+        int openReaders() { return openReaders.get(); }
+
+        void close() {
+            closed = true;
+            PooledConnection c;
+            while ((c = idleReaders.poll()) != null) { c.close(); openReaders.decrementAndGet(); }
+            writeLock.lock();
+            try { if (writer != null) { writer.close(); writer = null; } }
+            finally { writeLock.unlock(); }
+        }
+    }
+
+    static class Rollup {
+        int sessions; long totalSeconds; double totalKcal; int maxSeconds;
+        void add(Rollup r) {
+            sessions += r.sessions; totalSeconds += r.totalSeconds; totalKcal += r.totalKcal;
+            maxSeconds = Math.max(maxSeconds, r.maxSeconds);
+        }
+    }
+
+    static class ProgressStats {
+        final Rollup today = new Rollup(), thisWeek = new Rollup(), last7Days = new Rollup(), last4Weeks = new Rollup(), allTime = new Rollup();
+        int medianSeconds, p90Seconds;
+        double avgDailyKcal7;
+    }
+
+    // Archived workouts of one user and month: a deflated run of rows sorted by (ts, id), with ids and
+    // timestamps delta-encoded as zigzag varints. Calories stay doubles so rollups rebuild exactly.
+    static class WorkoutSegment {
+        private static final int FORMAT = 1;
+
+        static byte[] encode(List<Workout> rows) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 16 + 16);
+            try (DataOutputStream out = new DataOutputStream(new java.util.zip.DeflaterOutputStream(bytes))) {
+                out.writeByte(FORMAT);
+                writeVar(out, rows.size());
+                long prevTs = 0, prevId = 0;
+                for (Workout w : rows) {
+                    writeVar(out, w.id - prevId); prevId = w.id;
+                    writeVar(out, w.ts - prevTs); prevTs = w.ts;
+                    writeVar(out, w.tzOffset);
+                    writeVar(out, w.durationSeconds);
+                    out.writeDouble(w.calories);
+                    byte[] note = w.note == null ? new byte[0] : w.note.getBytes(StandardCharsets.UTF_8);
+                    writeVar(out, w.note == null ? -1 : note.length);
+                    out.write(note);
+                }
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            return bytes.toByteArray();
+        }
+
+        static List<Workout> decode(int userId, byte[] data) {
+            try (DataInputStream in = new DataInputStream(new java.util.zip.InflaterInputStream(new ByteArrayInputStream(data)))) {
+                if (in.readByte() != FORMAT) throw new IOException("Unknown archive segment format");
+                int n = (int) readVar(in);
+                List<Workout> out = new ArrayList<>(n);
+                long ts = 0, id = 0;
+                for (int i = 0; i < n; i++) {
+                    id += readVar(in);
+                    ts += readVar(in);
+                    int tz = (int) readVar(in), secs = (int) readVar(in);
+                    double kcal = in.readDouble();
+                    int len = (int) readVar(in);
+                    String note = null;
+                    if (len >= 0) { byte[] b = new byte[len]; in.readFully(b); note = new String(b, StandardCharsets.UTF_8); }
+                    out.add(new Workout((int) id, userId, ts, tz, secs, kcal, note));
+                }
+                return out;
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+
+        private static void writeVar(DataOutput out, long v) throws IOException {
+            long z = (v << 1) ^ (v >> 63);
+            while ((z & ~0x7FL) != 0) { out.writeByte((int) (z & 0x7F) | 0x80); z >>>= 7; }
+            out.writeByte((int) z);
+        }
+
+        private static long readVar(DataInput in) throws IOException {
+            long z = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                z |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return (z >>> 1) ^ -(z & 1);
+        }
+    }
+
+    // One user's workouts as primitive columns ordered by time, with running totals so range
+    // sums are two binary searches. Notes are dictionary-encoded since most repeat.
+    static class WorkoutColumns {
+        private int size;
+        private long[] epochSec = new long[16];
+        private int[] seconds = new int[16];
+        private float[] kcal = new float[16];
+        private int[] noteIds = new int[16];
+        private long[] secondsPrefix = new long[17];
+        private double[] kcalPrefix = new double[17];
+        private final List<String> dict = new ArrayList<>();
+        private final Map<String, Integer> dictIds = new HashMap<>();
+
+        synchronized int size() { return size; }
+        synchronized long epochSecondAt(int i) { return epochSec[i]; }
+        synchronized int secondsAt(int i) { return seconds[i]; }
+        synchronized float kcalAt(int i) { return kcal[i]; }
+        synchronized String noteAt(int i) { return dict.get(noteIds[i]); }
+        synchronized int distinctNotes() { return dict.size(); }
+
+        synchronized void add(long at, int durationSeconds, double calories, String note) {
+            if (size == epochSec.length) grow();
+            int i = size;
+            if (size > 0 && at < epochSec[size - 1]) {
+                i = upperBound(at);
+                System.arraycopy(epochSec, i, epochSec, i + 1, size - i);
+                System.arraycopy(seconds, i, seconds, i + 1, size - i);
+                System.arraycopy(kcal, i, kcal, i + 1, size - i);
+                System.arraycopy(noteIds, i, noteIds, i + 1, size - i);
+            }
+            epochSec[i] = at; seconds[i] = durationSeconds; kcal[i] = (float) calories;
+            String n = note == null ? "" : note;
+            Integer id = dictIds.get(n);
+            if (id == null) { id = dict.size(); dict.add(n); dictIds.put(n, id); }
+            noteIds[i] = id;
+            size++;
+            for (int j = i; j < size; j++) {
+                secondsPrefix[j + 1] = secondsPrefix[j] + seconds[j];
+                kcalPrefix[j + 1] = kcalPrefix[j] + kcal[j];
+            }
+        }
+
+        private void grow() {
+            int n = size * 2;
+            epochSec = Arrays.copyOf(epochSec, n); seconds = Arrays.copyOf(seconds, n);
+            kcal = Arrays.copyOf(kcal, n); noteIds = Arrays.copyOf(noteIds, n);
+            secondsPrefix = Arrays.copyOf(secondsPrefix, n + 1); kcalPrefix = Arrays.copyOf(kcalPrefix, n + 1);
+        }
+
+        // First index whose time is >= at.
+        private int lowerBound(long at) {
+            int lo = 0, hi = size;
+            while (lo < hi) { int mid = (lo + hi) >>> 1; if (epochSec[mid] < at) lo = mid + 1; else hi = mid; }
+            return lo;
+        }
+
+        private int upperBound(long at) {
+            int lo = 0, hi = size;
+            while (lo < hi) { int mid = (lo + hi) >>> 1; if (epochSec[mid] <= at) lo = mid + 1; else hi = mid; }
+            return lo;
+        }
+
+        // Workouts with from <= time < to.
+        synchronized Rollup range(long from, long to) {
+            int a = lowerBound(from), b = lowerBound(to);
+            Rollup r = new Rollup();
+            if (b <= a) return r;
+            r.sessions = b - a;
+            r.totalSeconds = secondsPrefix[b] - secondsPrefix[a];
+            r.totalKcal = kcalPrefix[b] - kcalPrefix[a];
+            for (int i = a; i < b; i++) r.maxSeconds = Math.max(r.maxSeconds, seconds[i]);
+            return r;
+        }
+
+        // Average kcal per day over a trailing window, one value per day starting at fromDay.
+        synchronized double[] movingAverageKcal(long fromDay, int days, int window) {
+            double[] out = new double[days];
+            for (int d = 0; d < days; d++) {
+                long end = fromDay + (d + 1) * 86400L;
+                int a = lowerBound(end - window * 86400L), b = lowerBound(end);
+                out[d] = (kcalPrefix[b] - kcalPrefix[a]) / window;
+            }
+            return out;
+        }
+
+        // Nearest-rank percentile of session length for from <= time < to.
+        synchronized int percentileSeconds(long from, long to, double p) {
+            int a = lowerBound(from), b = lowerBound(to), n = b - a;
+            if (n <= 0) return 0;
+            int[] scratch = Arrays.copyOfRange(seconds, a, b);
+            Arrays.sort(scratch);
+            return scratch[Math.min(n - 1, Math.max(0, (int) Math.ceil(p / 100.0 * n) - 1))];
+        }
+    }
+
+    // Lazily loaded WorkoutColumns per user, bounded by total rows with LRU eviction.
+    static class AnalyticsStore {
+        private final DB db;
+        private final long maxRows;
+        private long rows, generation;
+        // Bumped per user by each write, so a load only loses its result to writes for that user
+        // (or to invalidateAll, which bumps the generation).
+        private final Map<Integer, Long> epochs = new HashMap<>();
+        private final LinkedHashMap<Integer, WorkoutColumns> users = new LinkedHashMap<>(64, 0.75f, true);
+
+        AnalyticsStore(DB db, long maxRows) { this.db = db; this.maxRows = maxRows; }
+
+        WorkoutColumns columns(int userId) throws SQLException {
+            long seenGeneration, seenEpoch;
+            synchronized (users) {
+                WorkoutColumns c = users.get(userId);
+                if (c != null) return c;
+                seenGeneration = generation;
+                seenEpoch = epochs.getOrDefault(userId, 0L);
+            }
+            WorkoutColumns cols = db.pool.read("db.analyticsLoad", c -> {
+                PreparedStatement ps = c.prepare(DB.WORKOUT_SERIES);
+                ps.setInt(1, userId);
+                WorkoutColumns wc = new WorkoutColumns();
+                List<Workout> old = db.archivedWorkouts(c, userId);
+                for (int i = old.size() - 1; i >= 0; i--) { Workout w = old.get(i); wc.add(Math.floorDiv(w.ts, 1000), w.durationSeconds, w.calories, w.note); }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) wc.add(Math.floorDiv(rs.getLong(1), 1000), rs.getInt(2), rs.getDouble(3), rs.getString(4));
+                }
+                return wc;
+            });
+            synchronized (users) {
+                if (generation != seenGeneration || epochs.getOrDefault(userId, 0L) != seenEpoch) return cols;
+                WorkoutColumns raced = users.get(userId);
+                if (raced != null) return raced;
+                users.put(userId, cols);
+                rows += cols.size();
+                evict(userId);
+            }
+            return cols;
+        }
+
+        // Drops least recently used users other than keep until the row cap holds. Caller holds users.
+        private void evict(int keep) {
+            Iterator<Map.Entry<Integer, WorkoutColumns>> it = users.entrySet().iterator();
+            while (rows > maxRows && users.size() > 1) {
+                Map.Entry<Integer, WorkoutColumns> e = it.next();
+                if (e.getKey() == keep) continue;
+                rows -= e.getValue().size();
+                it.remove();
+            }
+        }
+
+        void onWorkout(WorkoutRow r) {
+            WorkoutColumns c;
+            synchronized (users) {
+                epochs.merge(r.userId, 1L, Long::sum);
+                c = users.get(r.userId);
+                if (c == null) return;
+                rows++;
+                evict(r.userId);
+            }
+            c.add(Math.floorDiv(r.ts, 1000), r.durationSeconds, r.calories, r.note);
+        }
+
+        void invalidate(int userId) {
+            synchronized (users) {
+                epochs.merge(userId, 1L, Long::sum);
+                WorkoutColumns c = users.remove(userId);
+                if (c != null) rows -= c.size();
+            }
+        }
+
+        void invalidateAll() { synchronized (users) { generation++; epochs.clear(); users.clear(); rows = 0; } }
+    }
+
+
+    // Per-user recommendation state, seeded once from the weekly rollups and then kept current by
+    // applying each saved workout or profile change. Rendered text is cached until the state changes.
+    static class RecommendationEngine {
+        static final int WEEKS = 8, MAX_USERS = 256, WEEKLY_TARGET_MINUTES = 150;
+        static final double LOW_MET = 4.75, HIGH_MET = 7.0, DEFAULT_WEIGHT_KG = 70;
+        private static final String[][] NOTE_RULES = {
+            {"knee", "Knees: prefer cycling, swimming or the elliptical over running and jumping."},
+            {"back", "Back: build core strength first and avoid heavy loaded bending."},
+            {"heart", "Heart condition: stay at moderate intensity unless your doctor has cleared more."},
+            {"asthma", "Asthma: warm up gradually and keep your inhaler at hand."},
+            {"diabet", "Diabetes: check blood sugar around longer sessions."},
+            {"pregnan", "Pregnancy: favour low-impact activity and follow your clinician's guidance."},
+            {"injur", "Injury: train only in pain-free ranges, ideally supervised."},
+        };
+
+        static class Week { final Rollup volume = new Rollup(); final int[] mix = new int[3]; }
+
+        static class State {
+            final TreeMap<LocalDate, Week> weeks = new TreeMap<>();
+            Double heightCm, weightKg;
+            String notes = "";
+            final List<String> noteAdvice = new ArrayList<>();
+            String text;
+            LocalDate renderedOn;
+
+            void profile(Double heightCm, Double weightKg, String notes) {
+                this.heightCm = heightCm; this.weightKg = weightKg;
+                this.notes = notes == null ? "" : notes.trim();
+                noteAdvice.clear();
+                String lower = this.notes.toLowerCase(Locale.ROOT);
+                for (String[] rule : NOTE_RULES) if (lower.contains(rule[0])) noteAdvice.add(rule[1]);
+                text = null;
+            }
+
+            double kcalPerHourAt(double met) { return met * (weightKg == null || weightKg <= 0 ? DEFAULT_WEIGHT_KG : weightKg); }
+
+            void add(LocalDate day, int seconds, double kcal) {
+                Week w = weeks.computeIfAbsent(day.with(DayOfWeek.MONDAY), k -> new Week());
+                w.volume.sessions++; w.volume.totalSeconds += seconds; w.volume.totalKcal += kcal;
+                w.volume.maxSeconds = Math.max(w.volume.maxSeconds, seconds);
+                if (seconds > 0) {
+                    double perHour = kcal * 3600.0 / seconds;
+                    w.mix[perHour < kcalPerHourAt(LOW_MET) ? 0 : perHour < kcalPerHourAt(HIGH_MET) ? 1 : 2]++;
+                }
+                text = null;
+            }
+
+            String render(LocalDate today) {
+                LocalDate monday = today.with(DayOfWeek.MONDAY);
+                weeks.headMap(monday.minusWeeks(WEEKS - 1)).clear();
+                StringBuilder sb = new StringBuilder();
+                if (heightCm == null || weightKg == null) {
+                    sb.append("Set your height and weight to get personalized recommendations.\n");
+                } else {
+                    double bmi = bmi(heightCm, weightKg);
+                    sb.append(String.format("Your BMI: %.1f\n", bmi));
+                    if (bmi < 18.5) sb.append("Underweight: focus on gentle strength training and calorie-dense nutritious meals.\n");
+                    else if (bmi < 25) sb.append("Normal weight: good job. Mix cardio, strength, and mobility.\n");
+                    else if (bmi < 30) sb.append("Overweight: recommend regular moderate cardio and resistance training. Watch diet.\n");
+                    else sb.append("Obese: focus on low-impact cardio (walking, cycling) and consult a healthcare professional before intense exercise.\n");
+                }
+
+                Week cur = weeks.getOrDefault(monday, new Week());
+                long minutes = cur.volume.totalSeconds / 60;
+                sb.append(String.format("\nThis week: %d sessions, %d min, %.0f kcal. ", cur.volume.sessions, minutes, cur.volume.totalKcal));
+                if (minutes < WEEKLY_TARGET_MINUTES) sb.append(String.format("About %d more active minutes reaches the %d-minute weekly target.\n", WEEKLY_TARGET_MINUTES - minutes, WEEKLY_TARGET_MINUTES));
+                else sb.append("You've reached the weekly activity target.\n");
+
+                int[] mix = new int[3];
+                for (Week w : weeks.tailMap(monday.minusWeeks(3)).values()) for (int i = 0; i < 3; i++) mix[i] += w.mix[i];
+                int total = mix[0] + mix[1] + mix[2];
+                if (total > 0) {
+                    sb.append(String.format("Last 4 weeks: %d%% low, %d%% moderate, %d%% high intensity. ",
+                            mix[0] * 100 / total, mix[1] * 100 / total, mix[2] * 100 / total));
+                    if (!notes.isEmpty() && mix[2] > 0) sb.append("With your health notes, get clearance before more high-intensity sessions.\n");
+                    else if (mix[2] * 2 > total) sb.append("Over half were high intensity; schedule easier recovery days.\n");
+                    else if (mix[0] == total && total >= 3) sb.append("Try swapping one session a week for moderate intensity.\n");
+                    else sb.append("\n");
+                }
+
+                double[] kcal = new double[4];
+                double mean = 0;
+                for (int i = 0; i < 4; i++) {
+                    Week w = weeks.get(monday.minusWeeks(4 - i));
+                    kcal[i] = w == null ? 0 : w.volume.totalKcal;
+                    mean += kcal[i] / 4;
+                }
+                if (mean > 0) {
+                    double slope = 0;
+                    for (int i = 0; i < 4; i++) slope += (i - 1.5) * (kcal[i] - mean) / 5;
+                    double rel = slope / mean;
+                    if (rel > 0.1) sb.append(String.format("Weekly calories burned are trending up (about +%.0f%% per week). Increase load gradually.\n", rel * 100));
+                    else if (rel < -0.1) sb.append(String.format("Weekly calories burned are trending down (about %.0f%% per week). Aim to get back to your earlier routine.\n", rel * 100));
+                    else sb.append("Weekly calories burned are steady.\n");
+                } else if (total == 0) {
+                    sb.append("Log a few workouts to get history-based recommendations.\n");
+                }
+
+                if (!notes.isEmpty()) {
+                    sb.append("\nHealth notes: ").append(notes).append("\n");
+                    if (noteAdvice.isEmpty()) sb.append("Because of health notes, avoid high-intensity without clearance; favor low-impact and supervised workouts.\n");
+                    for (String a : noteAdvice) sb.append(a).append("\n");
+                }
+                renderedOn = today;
+                return text = sb.toString();
+            }
+        }
+
+        private final DB db;
+        // Same scheme as AnalyticsStore: a seed is dropped only if its own user changed meanwhile.
+        private long generation;
+        private final Map<Integer, Long> epochs = new HashMap<>();
+        private final Map<Integer, State> states = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, State> e) { return size() > MAX_USERS; }
+        };
+
+        RecommendationEngine(DB db) { this.db = db; }
+
+        String text(int userId) throws SQLException {
+            State s;
+            synchronized (states) { s = states.get(userId); }
+            if (s == null) s = seed(userId);
+            LocalDate today = LocalDate.now();
+            synchronized (s) { return s.text != null && today.equals(s.renderedOn) ? s.text : s.render(today); }
+        }
+
+        void onWorkout(WorkoutRow r) {
+            State s;
+            synchronized (states) { epochs.merge(r.userId, 1L, Long::sum); s = states.get(r.userId); }
+            if (s == null) return;
+            synchronized (s) { s.add(Timestamps.day(r.ts, r.tzOffset), r.durationSeconds, r.calories); }
+        }
+
+        void onProfile(int userId, Double heightCm, Double weightKg, String notes) {
+            State s;
+            synchronized (states) { epochs.merge(userId, 1L, Long::sum); s = states.get(userId); }
+            if (s != null) synchronized (s) { s.profile(heightCm, weightKg, notes); }
+        }
+
+        void invalidate(int userId) { synchronized (states) { epochs.merge(userId, 1L, Long::sum); states.remove(userId); } }
+        void invalidateAll() { synchronized (states) { generation++; epochs.clear(); states.clear(); } }
+
+        // Volume comes from the weekly rollups; intensity needs per-session rates, so it is counted
+        // once here over the same window and then maintained incrementally.
+        private State seed(int userId) throws SQLException {
+            long seenGeneration, seenEpoch;
+            synchronized (states) { seenGeneration = generation; seenEpoch = epochs.getOrDefault(userId, 0L); }
+            State s = new State();
+            User u = db.getUserById(userId);
+            if (u != null) s.profile(u.heightCm, u.weightKg, u.healthNotes);
+            LocalDate firstWeek = LocalDate.now().with(DayOfWeek.MONDAY).minusWeeks(WEEKS - 1);
+            String first = firstWeek.toString();
+            db.pool.read("db.recommendationSeed", c -> {
+                DB.readRollups(c, DB.WEEKLY_SINCE, userId, first)
+                        .forEach((week, r) -> s.weeks.computeIfAbsent(LocalDate.parse(week), k -> new Week()).volume.add(r));
+                PreparedStatement ps = c.prepare(DB.INTENSITY_MIX);
+                double low = s.kcalPerHourAt(LOW_MET), high = s.kcalPerHourAt(HIGH_MET);
+                ps.setDouble(1, low); ps.setDouble(2, low); ps.setDouble(3, high); ps.setDouble(4, high);
+                ps.setInt(5, userId); ps.setLong(6, Timestamps.startOfDay(firstWeek));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Week w = s.weeks.computeIfAbsent(LocalDate.parse(rs.getString(1)), k -> new Week());
+                        for (int i = 0; i < 3; i++) w.mix[i] = rs.getInt(i + 2);
+                    }
+                }
+                return null;
+            });
+            synchronized (states) {
+                if (generation == seenGeneration && epochs.getOrDefault(userId, 0L) == seenEpoch) states.put(userId, s);
+            }
+            return s;
         }
     }
 
     static class DB {
-        private static final String URL = "jdbc:sqlite:ftracker.db";
-        DB() { init(); }
+        static final String URL = "jdbc:sqlite:" + System.getProperty("ftracker.db", "ftracker.db");
+        private static final int MAX_READERS = 4;
+        private static final int IMPORT_BATCH = 5000;
+        final ConnectionPool pool;
+        private final Map<Integer, String> usernames = new ConcurrentHashMap<>();
+        final RecommendationEngine recommendations = new RecommendationEngine(this);
+        final AnalyticsStore analytics = new AnalyticsStore(this, Long.getLong("ftracker.analyticsMaxRows", 2_000_000));
+        WriteBehind writeBehind;
+        final ChangeBus changes = new ChangeBus();
+        private static final long CHANGE_POLL_MS = 250;
+        private final Map<Integer, Integer> instructionMarks = new ConcurrentHashMap<>();
+        private ScheduledExecutorService changePoller;
+        private PooledConnection pollConn;
+        private long dataVersion = -1;
+        DB() { this(URL); }
+        // Workouts older than the retention age live in monthly segments in <db>.archive (attached as
+        // "archive"); in-memory and file: URLs keep the segment table in the main database instead.
+        private final String segments;
+        // Ids of hot rows whose segments are committed but whose delete from workouts may not be; it lives
+        // beside the segments so both commit together.
+        private final String moves;
+        // Segment queries name the table through `segments`, so each DB builds its own.
+        final String countWorkouts, segmentsBetween, segmentsBefore, segmentForMonth, putSegment, deleteSegments, usersWithSegments;
+        private static final int VACUUM_STEP_PAGES = 256;
+        private ScheduledExecutorService maintenance;
+        DB(String url) {
+            Path archive = sidecar(url, ".archive");
+            pool = new ConnectionPool(url, MAX_READERS, archive);
+            segments = (archive == null ? "main" : "archive") + ".workout_segments";
+            moves = (archive == null ? "main" : "archive") + ".archive_moves";
+            countWorkouts = "SELECT (SELECT COUNT(*) FROM workouts WHERE user_id = ?1) + (SELECT COALESCE(SUM(rows), 0) FROM " + segments + " WHERE user_id = ?1)";
+            segmentsBetween = "SELECT data FROM " + segments + " WHERE user_id = ? AND last_ts >= ? AND first_ts < ?";
+            segmentsBefore = "SELECT last_ts, data FROM " + segments + " WHERE user_id = ? AND first_ts <= ? AND last_ts >= ? ORDER BY last_ts DESC";
+            segmentForMonth = "SELECT data FROM " + segments + " WHERE user_id = ? AND month = ?";
+            putSegment = "INSERT OR REPLACE INTO " + segments + "(user_id, month, rows, first_ts, last_ts, data) VALUES(?,?,?,?,?,?)";
+            deleteSegments = "DELETE FROM " + segments + " WHERE user_id = ?";
+            usersWithSegments = "SELECT DISTINCT s.user_id, u.username FROM " + segments + " s JOIN users u ON u.id = s.user_id";
+            init();
+        }
         private void init() {
             try {
                 Class.forName("org.sqlite.JDBC");
             } catch (ClassNotFoundException e) {
-                JOptionPane.showMessageDialog(null, "SQLite JDBC driver not found. Make sure jar is on classpath.", "DB Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(1);
+                fatal("SQLite JDBC driver not found. Make sure jar is on classpath.");
+            }
+            try {
+                pool.write("db.init", c -> {
+                    migrate(c);
+                    try (Statement st = c.conn.createStatement()) {
+                        st.execute("CREATE TABLE IF NOT EXISTS " + segments + " (user_id INTEGER NOT NULL, month TEXT NOT NULL, " +
+                                "rows INTEGER NOT NULL, first_ts INTEGER NOT NULL, last_ts INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY(user_id, month))");
+                        st.execute("CREATE INDEX IF NOT EXISTS " + segments.replace(".", ".idx_") + "_user_last ON workout_segments(user_id, last_ts)");
+                        st.execute("CREATE TABLE IF NOT EXISTS " + moves + " (id INTEGER PRIMARY KEY)");
+                    }
+                    return null;
+                });
+                finishMoves(null);
+                // The admin seed hashes (and on a fresh install calibrates PBKDF2) outside the writer,
+                // so cold start does not hold the write lock for seconds.
+                if (getUserByUsername("admin") == null) {
+                    String hash = Passwords.hash("admin123".toCharArray(), passwordIterations());
+                    pool.write("db.seedAdmin", c -> {
+                        PreparedStatement ins = c.prepare("INSERT OR IGNORE INTO users(username,password,role) VALUES(?,?,?)");
+                        ins.setString(1, "admin");
+                        ins.setString(2, hash);
+                        ins.setString(3, "admin");
+                        return ins.executeUpdate();
+                    });
+                }
+                writeBehind = new WriteBehind(sidecar(pool.url, ".pending"), Integer.getInteger("ftracker.writeBehindBatch", 64),
+                        Long.getLong("ftracker.writeBehindDelayMs", 200));
+            } catch (SQLException | IOException ex) {
+                ex.printStackTrace();
+                fatal("DB init error: " + ex.getMessage());
             }
-            try (Connection c = DriverManager.getConnection(URL);
-                 Statement st = c.createStatement()) {
+        }
+
+        static Path sidecar(String url, String suffix) {
+            String file = url.startsWith("jdbc:sqlite:") ? url.substring("jdbc:sqlite:".length()) : url;
+            if (file.isEmpty() || file.startsWith(":memory:") || file.startsWith("file:")) return null;
+            return Paths.get(file + suffix);
+        }
+
+        private static void fatal(String message) {
+            if (GraphicsEnvironment.isHeadless()) System.err.println(message);
+            else JOptionPane.showMessageDialog(null, message, "DB Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+
+        interface Migration { void apply(Statement st) throws SQLException; }
+
+        private static Migration sql(String... statements) {
+            return st -> { for (String q : statements) st.execute(q); };
+        }
 
-                st.execute("PRAGMA foreign_keys = ON;");
-                st.execute("CREATE TABLE IF NOT EXISTS users (" +
+        // Local day/week of a row's ts, given the row prefix ("" or "NEW.").
+        private static String dayOf(String row) { return "date(" + row + "ts / 1000 + " + row + "tz_offset, 'unixepoch')"; }
+        static String weekOf(String row) { return "date(" + row + "ts / 1000 + " + row + "tz_offset, 'unixepoch', 'weekday 0', '-6 days')"; }
+        // Schema 3 bucketed the old ISO text date column; fresh databases still replay it before step 5.
+        private static String textDayOf(String date) { return "substr(" + date + ", 1, 10)"; }
+        private static String textWeekOf(String date) { return "COALESCE(date(" + date + ", 'weekday 0', '-6 days'), " + textDayOf(date) + ")"; }
+        private static final String ROLLUP_AGG = "COUNT(*), SUM(duration_seconds), SUM(calories), MAX(duration_seconds) FROM workouts WHERE user_id IN (SELECT id FROM users)";
+        private static String rebuildDaily(String day) { return "INSERT INTO workout_daily SELECT user_id, " + day + ", " + ROLLUP_AGG + " GROUP BY 1, 2"; }
+        private static String rebuildWeekly(String week) { return "INSERT INTO workout_weekly SELECT user_id, " + week + ", " + ROLLUP_AGG + " GROUP BY 1, 2"; }
+        private static final String REBUILD_DAILY = rebuildDaily(dayOf(""));
+        private static final String REBUILD_WEEKLY = rebuildWeekly(weekOf(""));
+        private static final String REBUILD_TOTALS = "INSERT INTO workout_totals SELECT user_id, " + ROLLUP_AGG + " GROUP BY 1";
+
+        // search_index rowid = source id * 4 + kind, so the sync triggers touch entries by rowid.
+        static final int SEARCH_NOTES = 1, SEARCH_WORKOUT = 2, SEARCH_INSTRUCTION = 3;
+
+        // Append only: index i upgrades a database from user_version i to i+1.
+        private static final List<Migration> MIGRATIONS = List.of(
+                sql("CREATE TABLE IF NOT EXISTS users (" +
                         "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         "username TEXT UNIQUE NOT NULL, password TEXT NOT NULL, role TEXT NOT NULL, " +
-                        "height_cm REAL, weight_kg REAL, health_notes TEXT)");
-
-                st.execute("CREATE TABLE IF NOT EXISTS workouts (" +
+                        "height_cm REAL, weight_kg REAL, health_notes TEXT)",
+                    "CREATE TABLE IF NOT EXISTS workouts (" +
                         "id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER NOT NULL, date TEXT NOT NULL, " +
                         "duration_seconds INTEGER NOT NULL, calories REAL NOT NULL, note TEXT, " +
-                        "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)");
-
-                st.execute("CREATE TABLE IF NOT EXISTS instructions (" +
+                        "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)",
+                    "CREATE TABLE IF NOT EXISTS instructions (" +
                         "id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER NOT NULL, admin_id INTEGER NOT NULL, date TEXT NOT NULL, text TEXT NOT NULL, " +
                         "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE, " +
-                        "FOREIGN KEY(admin_id) REFERENCES users(id) ON DELETE CASCADE)");
-
-                PreparedStatement ps = c.prepareStatement("SELECT id FROM users WHERE username = ?");
-                ps.setString(1, "admin");
-                ResultSet rs = ps.executeQuery();
-                if (!rs.next()) {
-                    PreparedStatement ins = c.prepareStatement("INSERT INTO users(username,password,role) VALUES(?,?,?)");
-                    ins.setString(1, "admin");
-                    ins.setString(2, "admin123"); 
-                    ins.setString(3, "admin");
-                    ins.executeUpdate();
-                    ins.close();
-                }
-                rs.close(); ps.close();
-
-            } catch (SQLException ex) {
-                ex.printStackTrace();
-                JOptionPane.showMessageDialog(null, "DB init error: " + ex.getMessage(), "DB Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(1);
+                        "FOREIGN KEY(admin_id) REFERENCES users(id) ON DELETE CASCADE)"),
+                sql("CREATE INDEX IF NOT EXISTS idx_workouts_user_date ON workouts(user_id, date)",
+                    "CREATE INDEX IF NOT EXISTS idx_instructions_user_date ON instructions(user_id, date)",
+                    "CREATE INDEX IF NOT EXISTS idx_instructions_admin ON instructions(admin_id)"),
+                sql(rollupTable("workout_daily", "day"), rollupTable("workout_weekly", "week"),
+                    "CREATE TABLE IF NOT EXISTS workout_totals (user_id INTEGER PRIMARY KEY, sessions INTEGER NOT NULL, " +
+                        "total_seconds INTEGER NOT NULL, total_kcal REAL NOT NULL, max_seconds INTEGER NOT NULL, " +
+                        "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)",
+                    rollupTrigger(textDayOf("NEW.date"), textWeekOf("NEW.date")),
+                    rebuildDaily(textDayOf("date")), rebuildWeekly(textWeekOf("date")), REBUILD_TOTALS),
+                sql("CREATE TABLE IF NOT EXISTS app_settings (key TEXT PRIMARY KEY, value TEXT NOT NULL) WITHOUT ROWID"),
+                DB::toEpochMillis,
+                st -> {
+                    st.execute("CREATE VIRTUAL TABLE search_index USING fts5(body, user_id UNINDEXED, tokenize = 'unicode61 remove_diacritics 2')");
+                    for (String q : searchSync("users", "health_notes", SEARCH_NOTES, "id")) st.execute(q);
+                    for (String q : searchSync("workouts", "note", SEARCH_WORKOUT, "user_id")) st.execute(q);
+                    for (String q : searchSync("instructions", "text", SEARCH_INSTRUCTION, "user_id")) st.execute(q);
+                }
+        );
+
+        private static String[] searchSync(String table, String column, int kind, String owner) {
+            String insert = "INSERT INTO search_index(rowid, body, user_id) SELECT NEW.id * 4 + " + kind + ", NEW." + column + ", NEW." + owner +
+                    " WHERE NEW." + column + " <> ''; ";
+            String delete = "DELETE FROM search_index WHERE rowid = OLD.id * 4 + " + kind + "; ";
+            return new String[]{
+                "CREATE TRIGGER trg_" + table + "_search_ins AFTER INSERT ON " + table + " BEGIN " + insert + "END",
+                "CREATE TRIGGER trg_" + table + "_search_upd AFTER UPDATE OF " + column + ", " + owner + " ON " + table + " BEGIN " + delete + insert + "END",
+                "CREATE TRIGGER trg_" + table + "_search_del AFTER DELETE ON " + table + " BEGIN " + delete + "END",
+                "INSERT INTO search_index(rowid, body, user_id) SELECT id * 4 + " + kind + ", " + column + ", " + owner + " FROM " + table + " WHERE " + column + " <> ''"
+            };
+        }
+
+        private static String rollupTrigger(String day, String week) {
+            return "CREATE TRIGGER IF NOT EXISTS trg_workouts_rollup AFTER INSERT ON workouts BEGIN " +
+                    rollupUpsert("workout_daily", "user_id, day", "NEW.user_id, " + day) +
+                    rollupUpsert("workout_weekly", "user_id, week", "NEW.user_id, " + week) +
+                    rollupUpsert("workout_totals", "user_id", "NEW.user_id") + "END";
+        }
+
+        // Rebuilds workouts and instructions with ts/tz_offset in place of the ISO text date. Old values
+        // are local times, so they are resolved against this machine's zone. Rows whose user no longer
+        // exists (left behind before foreign keys were enforced) cannot be copied under the FK and are dropped;
+        // how many is logged.
+        private static void toEpochMillis(Statement st) throws SQLException {
+            long orphans;
+            try (ResultSet rs = st.executeQuery("SELECT (SELECT COUNT(*) FROM workouts WHERE user_id NOT IN (SELECT id FROM users)) + " +
+                    "(SELECT COUNT(*) FROM instructions WHERE user_id NOT IN (SELECT id FROM users) OR admin_id NOT IN (SELECT id FROM users))")) {
+                orphans = rs.next() ? rs.getLong(1) : 0;
+            }
+            st.execute("CREATE TABLE workouts_v5 (id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER NOT NULL, " +
+                    "ts INTEGER NOT NULL, tz_offset INTEGER NOT NULL, duration_seconds INTEGER NOT NULL, calories REAL NOT NULL, note TEXT, " +
+                    "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE)");
+            st.execute("CREATE TABLE instructions_v5 (id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER NOT NULL, admin_id INTEGER NOT NULL, " +
+                    "ts INTEGER NOT NULL, tz_offset INTEGER NOT NULL, text TEXT NOT NULL, " +
+                    "FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY(admin_id) REFERENCES users(id) ON DELETE CASCADE)");
+            int bad = copyWithTimestamps(st.getConnection(),
+                    "SELECT id, date, user_id, duration_seconds, calories, note FROM workouts WHERE user_id IN (SELECT id FROM users)",
+                    "INSERT INTO workouts_v5(id, ts, tz_offset, user_id, duration_seconds, calories, note) VALUES(?,?,?,?,?,?,?)");
+            bad += copyWithTimestamps(st.getConnection(),
+                    "SELECT id, date, user_id, admin_id, text FROM instructions WHERE user_id IN (SELECT id FROM users) AND admin_id IN (SELECT id FROM users)",
+                    "INSERT INTO instructions_v5(id, ts, tz_offset, user_id, admin_id, text) VALUES(?,?,?,?,?,?)");
+            if (bad > 0) System.err.println("Migration: " + bad + " row(s) had unreadable dates and were stamped with epoch 0");
+            if (orphans > 0) System.err.println("Migration: dropped " + orphans + " workout/instruction row(s) whose user no longer exists");
+            Map<String, Long> seqs = new HashMap<>();
+            try (ResultSet rs = st.executeQuery("SELECT name, seq FROM sqlite_sequence WHERE name IN ('workouts', 'instructions')")) {
+                while (rs.next()) seqs.put(rs.getString(1), rs.getLong(2));
+            }
+            st.execute("DROP TABLE workouts");
+            st.execute("DROP TABLE instructions");
+            st.execute("ALTER TABLE workouts_v5 RENAME TO workouts");
+            st.execute("ALTER TABLE instructions_v5 RENAME TO instructions");
+            // Keep AUTOINCREMENT from reusing ids of rows deleted before the rebuild.
+            try (PreparedStatement ps = st.getConnection().prepareStatement("UPDATE sqlite_sequence SET seq = MAX(seq, ?) WHERE name = ?");
+                 PreparedStatement ins = st.getConnection().prepareStatement("INSERT INTO sqlite_sequence(name, seq) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = ?)")) {
+                for (Map.Entry<String, Long> e : seqs.entrySet()) {
+                    ps.setLong(1, e.getValue()); ps.setString(2, e.getKey()); ps.executeUpdate();
+                    ins.setString(1, e.getKey()); ins.setLong(2, e.getValue()); ins.setString(3, e.getKey()); ins.executeUpdate();
+                }
+            }
+            st.execute("CREATE INDEX idx_workouts_user_ts ON workouts(user_id, ts)");
+            st.execute("CREATE INDEX idx_instructions_user_ts ON instructions(user_id, ts)");
+            st.execute("CREATE INDEX idx_instructions_admin ON instructions(admin_id)");
+            st.execute(rollupTrigger(dayOf("NEW."), weekOf("NEW.")));
+            st.execute("DELETE FROM workout_daily");
+            st.execute("DELETE FROM workout_weekly");
+            st.execute("DELETE FROM workout_totals");
+            st.execute(REBUILD_DAILY);
+            st.execute(REBUILD_WEEKLY);
+            st.execute(REBUILD_TOTALS);
+        }
+
+        // Copies rows whose second column is an ISO date, replacing it with ts and tz_offset.
+        private static int copyWithTimestamps(Connection c, String select, String insert) throws SQLException {
+            int bad = 0;
+            WorkoutRow t = new WorkoutRow();
+            try (Statement q = c.createStatement(); ResultSet rs = q.executeQuery(select); PreparedStatement ins = c.prepareStatement(insert)) {
+                int cols = rs.getMetaData().getColumnCount(), n = 0;
+                while (rs.next()) {
+                    try { Timestamps.parse(rs.getString(2), t); }
+                    catch (DateTimeParseException | NullPointerException e) { t.ts = 0; t.tzOffset = 0; bad++; }
+                    ins.setInt(1, rs.getInt(1)); ins.setLong(2, t.ts); ins.setInt(3, t.tzOffset);
+                    for (int i = 3; i <= cols; i++) ins.setObject(i + 1, rs.getObject(i));
+                    ins.addBatch();
+                    if (++n % IMPORT_BATCH == 0) ins.executeBatch();
+                }
+                ins.executeBatch();
+            }
+            return bad;
+        }
+
+
+        private static String rollupTable(String name, String bucket) {
+            return "CREATE TABLE IF NOT EXISTS " + name + " (user_id INTEGER NOT NULL, " + bucket + " TEXT NOT NULL, " +
+                    "sessions INTEGER NOT NULL, total_seconds INTEGER NOT NULL, total_kcal REAL NOT NULL, max_seconds INTEGER NOT NULL, " +
+                    "PRIMARY KEY(user_id, " + bucket + "), FOREIGN KEY(user_id) REFERENCES users(id) ON DELETE CASCADE) WITHOUT ROWID";
+        }
+
+        private static String rollupUpsert(String table, String key, String keyValues) {
+            return "INSERT INTO " + table + " VALUES(" + keyValues + ", 1, NEW.duration_seconds, NEW.calories, NEW.duration_seconds) " +
+                    "ON CONFLICT(" + key + ") DO UPDATE SET sessions = sessions + 1, total_seconds = total_seconds + excluded.total_seconds, " +
+                    "total_kcal = total_kcal + excluded.total_kcal, max_seconds = MAX(max_seconds, excluded.max_seconds); ";
+        }
+
+        static int schemaVersion(PooledConnection c) throws SQLException {
+            try (ResultSet rs = c.prepare("PRAGMA user_version").executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+        }
+
+        private static void migrate(PooledConnection c) throws SQLException {
+            int version = schemaVersion(c);
+            if (version > MIGRATIONS.size())
+                throw new SQLException("ftracker.db schema version " + version + " is newer than this build supports (" + MIGRATIONS.size() + ")");
+            if (version == MIGRATIONS.size()) return;
+            try (Statement st = c.conn.createStatement()) {
+                for (int v = version; v < MIGRATIONS.size(); v++) {
+                    c.conn.setAutoCommit(false);
+                    try {
+                        MIGRATIONS.get(v).apply(st);
+                        st.execute("PRAGMA user_version = " + (v + 1));
+                        c.conn.commit();
+                    } catch (SQLException e) {
+                        c.conn.rollback();
+                        throw new SQLException("Schema migration to version " + (v + 1) + " failed: " + e.getMessage(), e);
+                    } finally { c.conn.setAutoCommit(true); }
+                }
+                st.execute("ANALYZE");
+                st.execute("PRAGMA optimize");
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (maintenance != null) {
+                    maintenance.shutdownNow();
+                    try { maintenance.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                    maintenance = null;
+                }
+            }
+            if (writeBehind != null) writeBehind.close();
+            synchronized (this) {
+                if (changePoller != null) {
+                    changePoller.shutdownNow();
+                    try { changePoller.awaitTermination(1, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                    changePoller = null;
+                }
+                if (pollConn != null) { pollConn.close(); pollConn = null; }
             }
+            try {
+                pool.write("db.close", c -> {
+                    try (Statement st = c.conn.createStatement()) { st.execute("PRAGMA optimize"); }
+                    return null;
+                });
+            } catch (SQLException e) { e.printStackTrace(); }
+            pool.close();
+        }
+
+        private static User readUser(ResultSet rs) throws SQLException {
+            return new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"),
+                    rs.getString("role"),
+                    rs.getObject("height_cm") == null ? null : rs.getDouble("height_cm"),
+                    rs.getObject("weight_kg") == null ? null : rs.getDouble("weight_kg"),
+                    rs.getString("health_notes"));
         }
 
+        // Queries with an index behind them are named here and in the sections below, so SelfTest
+        // checks the plans of the exact strings DB prepares.
+        static final String USER_BY_NAME = "SELECT * FROM users WHERE username = ?";
+        static final String USER_BY_ID = "SELECT * FROM users WHERE id = ?";
+        static final String USERNAME_BY_ID = "SELECT username FROM users WHERE id = ?";
+        static final String UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE id = ?";
+        static final String UPDATE_PROFILE = "UPDATE users SET height_cm = ?, weight_kg = ?, health_notes = ? WHERE id = ?";
+        static final String DELETE_USER = "DELETE FROM users WHERE id = ?";
+        static final String SETTING = "SELECT value FROM app_settings WHERE key = ?";
+
         User getUserByUsername(String username) {
-            try (Connection c = DriverManager.getConnection(URL)) {
-                PreparedStatement ps = c.prepareStatement("SELECT * FROM users WHERE username = ?");
-                ps.setString(1, username);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    User u = new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"),
-                            rs.getString("role"),
-                            rs.getObject("height_cm") == null ? null : rs.getDouble("height_cm"),
-                            rs.getObject("weight_kg") == null ? null : rs.getDouble("weight_kg"),
-                            rs.getString("health_notes"));
-                    rs.close(); ps.close(); return u;
-                }
-                rs.close(); ps.close();
+            try {
+                return pool.read("db.getUserByUsername", c -> {
+                    PreparedStatement ps = c.prepare(USER_BY_NAME);
+                    ps.setString(1, username);
+                    try (ResultSet rs = ps.executeQuery()) { return rs.next() ? readUser(rs) : null; }
+                });
+            } catch (SQLException e) { e.printStackTrace(); }
+            return null;
+        }
+
+        User getUserById(int userId) {
+            try {
+                return pool.read("db.getUserById", c -> {
+                    PreparedStatement ps = c.prepare(USER_BY_ID);
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) { return rs.next() ? readUser(rs) : null; }
+                });
             } catch (SQLException e) { e.printStackTrace(); }
             return null;
         }
 
-        Integer createUser(String username, String password, String role) {
-            try (Connection c = DriverManager.getConnection(URL)) {
-                PreparedStatement ps = c.prepareStatement("INSERT INTO users(username,password,role) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS);
-                ps.setString(1, username); ps.setString(2, password); ps.setString(3, role);
-                ps.executeUpdate();
-                ResultSet rk = ps.getGeneratedKeys();
-                if (rk.next()) { int id = rk.getInt(1); rk.close(); ps.close(); return id; }
-            } catch (SQLException e) {}
-            return null;
+        String getUsernameById(int userId) {
+            String cached = usernames.get(userId);
+            if (cached != null) return cached;
+            try {
+                String name = pool.read("db.getUsernameById", c -> {
+                    PreparedStatement ps = c.prepare(USERNAME_BY_ID);
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getString(1) : null; }
+                });
+                if (name != null) usernames.put(userId, name);
+                return name;
+            } catch (SQLException e) { e.printStackTrace(); }
+            return null;
+        }
+
+        Integer createUser(String username, String password, String role) {
+            return createUserWithHash(username, Passwords.hash(password.toCharArray(), passwordIterations()), role);
+        }
+
+        Integer createUserWithHash(String username, String hash, String role) {
+            try {
+                int id = pool.write("db.createUser", c -> {
+                    PreparedStatement ps = c.prepare("INSERT INTO users(username,password,role) VALUES(?,?,?)");
+                    ps.setString(1, username); ps.setString(2, hash); ps.setString(3, role);
+                    ps.executeUpdate();
+                    int newId = c.lastInsertId();
+                    usernames.remove(newId);
+                    return newId;
+                });
+                changes.publish(ChangeBus.Kind.USER_ADDED, id, new User(id, username, hash, role, null, null, null));
+                return id;
+            } catch (SQLException e) {}
+            return null;
+        }
+
+        boolean updatePassword(int userId, String passwordHash) {
+            try {
+                return pool.write("db.updatePassword", c -> {
+                    PreparedStatement ps = c.prepare(UPDATE_PASSWORD);
+                    ps.setString(1, passwordHash); ps.setInt(2, userId);
+                    return ps.executeUpdate() > 0;
+                });
+            } catch (SQLException e) { e.printStackTrace(); return false; }
+        }
+
+        String getSetting(String key) throws SQLException {
+            return pool.read("db.getSetting", c -> {
+                PreparedStatement ps = c.prepare(SETTING);
+                ps.setString(1, key);
+                try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getString(1) : null; }
+            });
+        }
+
+        void putSetting(String key, String value) throws SQLException {
+            pool.write("db.putSetting", c -> {
+                PreparedStatement ps = c.prepare("INSERT INTO app_settings(key, value) VALUES(?, ?) ON CONFLICT(key) DO UPDATE SET value = excluded.value");
+                ps.setString(1, key); ps.setString(2, value);
+                return ps.executeUpdate();
+            });
+        }
+
+        private volatile int passwordIterations;
+
+        // PBKDF2 cost is tuned once per install so a login verifies in about LOGIN_TARGET_MS on this machine.
+        int passwordIterations() {
+            if (passwordIterations > 0) return passwordIterations;
+            try {
+                String v = getSetting("password_iterations");
+                if (v == null) {
+                    v = Integer.toString(Passwords.calibrate(Passwords.LOGIN_TARGET_MS));
+                    putSetting("password_iterations", v);
+                }
+                passwordIterations = Integer.parseInt(v);
+            } catch (SQLException | NumberFormatException e) {
+                e.printStackTrace();
+                passwordIterations = Passwords.MIN_ITERATIONS;
+            }
+            return passwordIterations;
+        }
+
+        void setPasswordIterations(int iterations) throws SQLException {
+            putSetting("password_iterations", Integer.toString(iterations));
+            passwordIterations = iterations;
         }
 
         List<User> listUsers() {
             List<User> out = new ArrayList<>();
-            try (Connection c = DriverManager.getConnection(URL);
-                 Statement st = c.createStatement();
-                 ResultSet rs = st.executeQuery("SELECT * FROM users ORDER BY id DESC")) {
-                while (rs.next()) {
-                    out.add(new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"),
-                            rs.getString("role"),
-                            rs.getObject("height_cm")==null ? null : rs.getDouble("height_cm"),
-                            rs.getObject("weight_kg")==null ? null : rs.getDouble("weight_kg"),
-                            rs.getString("health_notes")));
-                }
+            try {
+                pool.read("db.listUsers", c -> {
+                    try (ResultSet rs = c.prepare("SELECT * FROM users ORDER BY id DESC").executeQuery()) {
+                        while (rs.next()) out.add(readUser(rs));
+                    }
+                    return null;
+                });
             } catch (SQLException e) { e.printStackTrace(); }
             return out;
         }
 
+        int countUsers() throws SQLException {
+            return pool.read("db.countUsers", c -> {
+                try (ResultSet rs = c.prepare("SELECT COUNT(*) FROM users").executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+            });
+        }
+
+        PageSource<User> userPages() {
+            return new PageSource<User>() {
+                public int count() throws SQLException { return countUsers(); }
+                public List<User> fetch(User after, int limit) throws SQLException { return usersAfter(after, limit, false); }
+                public List<User> keys(User after, int limit) throws SQLException { return usersAfter(after, limit, true); }
+            };
+        }
+
+        static String usersAfterSql(boolean keysOnly, boolean after) {
+            return "SELECT " + (keysOnly ? "id" : "*") + " FROM users" + (after ? " WHERE id < ?" : "") + " ORDER BY id DESC LIMIT ?";
+        }
+
+        private List<User> usersAfter(User after, int limit, boolean keysOnly) throws SQLException {
+            return pool.read("db.usersAfter", c -> {
+                PreparedStatement ps = c.prepare(usersAfterSql(keysOnly, after != null));
+                int i = 1;
+                if (after != null) ps.setInt(i++, after.id);
+                ps.setInt(i, limit);
+                List<User> out = new ArrayList<>(limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(keysOnly ? new User(rs.getInt(1), null, null, null, null, null, null) : readUser(rs));
+                }
+                return out;
+            });
+        }
+
         boolean updateProfile(int userId, Double heightCm, Double weightKg, String notes) {
-            try (Connection c = DriverManager.getConnection(URL)) {
-                PreparedStatement ps = c.prepareStatement("UPDATE users SET height_cm = ?, weight_kg = ?, health_notes = ? WHERE id = ?");
-                if (heightCm == null) ps.setNull(1, Types.REAL); else ps.setDouble(1, heightCm);
-                if (weightKg == null) ps.setNull(2, Types.REAL); else ps.setDouble(2, weightKg);
-                ps.setString(3, notes);
-                ps.setInt(4, userId);
-                boolean ok = ps.executeUpdate() > 0;
-                ps.close(); return ok;
+            Trace.record("profile", userId, heightCm == null ? "" : heightCm.toString(), weightKg == null ? "" : weightKg.toString(), notes);
+            try {
+                boolean updated = pool.write("db.updateProfile", c -> {
+                    PreparedStatement ps = c.prepare(UPDATE_PROFILE);
+                    if (heightCm == null) ps.setNull(1, Types.REAL); else ps.setDouble(1, heightCm);
+                    if (weightKg == null) ps.setNull(2, Types.REAL); else ps.setDouble(2, weightKg);
+                    ps.setString(3, notes);
+                    ps.setInt(4, userId);
+                    boolean ok = ps.executeUpdate() > 0;
+                    if (ok) recommendations.onProfile(userId, heightCm, weightKg, notes);
+                    return ok;
+                });
+                if (updated) changes.publish(ChangeBus.Kind.USER_UPDATED, userId, new User(userId, null, null, null, heightCm, weightKg, notes));
+                return updated;
             } catch (SQLException e) { e.printStackTrace(); return false; }
         }
 
+        void deleteUser(int userId) throws SQLException { deleteUsers(List.of(userId)); }
+
+        // Workouts, instructions and rollups go with each user through ON DELETE CASCADE. Archived segments
+        // sit in another file, which SQLite cannot commit atomically with main in WAL mode, so they go in a
+        // second transaction after the users: a failure in between only leaves segments of ids that no
+        // longer exist (and, with AUTOINCREMENT, never will again), which nothing reads and the next
+        // archive run sweeps.
+        int deleteUsers(Collection<Integer> userIds) throws SQLException {
+            int n = pool.transaction("db.deleteUsers", c -> {
+                PreparedStatement ps = c.prepare(DELETE_USER);
+                try {
+                    for (int id : userIds) { ps.setInt(1, id); ps.addBatch(); }
+                    int deleted = 0;
+                    for (int k : ps.executeBatch()) deleted += Math.max(k, 0);
+                    return deleted;
+                } finally { ps.clearBatch(); }
+            });
+            pool.transaction("db.deleteUsers.segments", c -> {
+                PreparedStatement seg = c.prepare(deleteSegments);
+                try {
+                    for (int id : userIds) { seg.setInt(1, id); seg.addBatch(); }
+                    return seg.executeBatch().length;
+                } finally { seg.clearBatch(); }
+            });
+            for (int id : userIds) {
+                usernames.remove(id);
+                recommendations.invalidate(id);
+                analytics.invalidate(id);
+                instructionMarks.remove(id);
+            }
+            if (n > 0) changes.publish(ChangeBus.Kind.USERS_DELETED, 0, List.copyOf(userIds));
+            return n;
+        }
+
         Integer addWorkout(int userId, int durationSeconds, double calories, String note) {
-            try (Connection c = DriverManager.getConnection(URL)) {
-                PreparedStatement ps = c.prepareStatement("INSERT INTO workouts(user_id,date,duration_seconds,calories,note) VALUES(?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS);
-                ps.setInt(1, userId); ps.setString(2, DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now()));
-                ps.setInt(3, durationSeconds); ps.setDouble(4, calories); ps.setString(5, note);
-                ps.executeUpdate();
-                ResultSet rk = ps.getGeneratedKeys();
-                if (rk.next()) { int id = rk.getInt(1); rk.close(); ps.close(); return id; }
+            WorkoutRow r = new WorkoutRow();
+            r.userId = userId; Timestamps.now(r);
+            r.durationSeconds = durationSeconds; r.calories = calories; r.note = note;
+            try {
+                Integer id = pool.write("db.addWorkout", c -> {
+                    PreparedStatement ps = c.prepare(INSERT_WORKOUT);
+                    bindWorkout(ps, r);
+                    ps.executeUpdate();
+                    return c.lastInsertId();
+                });
+                workoutAdded(r, id);
+                Trace.record("save", userId, Integer.toString(durationSeconds), Double.toString(calories), note);
+                return id;
             } catch (SQLException e) { e.printStackTrace(); }
             return null;
         }
 
+        static final String WORKOUTS_FOR_USER = "SELECT * FROM workouts WHERE user_id = ? ORDER BY ts DESC, id DESC";
+        static final String WORKOUTS_BETWEEN = "SELECT * FROM workouts WHERE user_id = ? AND ts >= ? AND ts < ? ORDER BY ts DESC, id DESC";
+        static final String WORKOUT_SERIES = "SELECT ts, duration_seconds, calories, note FROM workouts WHERE user_id = ? ORDER BY ts";
+        static final String EXPORT_ALL = "SELECT w.user_id, u.username, w.ts, w.duration_seconds, w.calories, w.note, w.tz_offset " +
+                "FROM workouts w JOIN users u ON u.id = w.user_id ORDER BY w.user_id, w.ts";
+        static final String EXPORT_USER = "SELECT user_id, NULL, ts, duration_seconds, calories, note, tz_offset FROM workouts WHERE user_id = ? ORDER BY ts DESC, id DESC";
+
         List<Workout> getWorkoutsForUser(int userId) {
             List<Workout> out = new ArrayList<>();
-            try (Connection c = DriverManager.getConnection(URL);
-                 PreparedStatement ps = c.prepareStatement("SELECT * FROM workouts WHERE user_id = ? ORDER BY date DESC")) {
+            try {
+                pool.read("db.getWorkoutsForUser", c -> {
+                    PreparedStatement ps = c.prepare(WORKOUTS_FOR_USER);
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) out.add(readWorkout(rs));
+                    }
+                    List<Workout> old = archived(c, userId, Long.MIN_VALUE, Long.MAX_VALUE);
+                    if (!old.isEmpty()) { out.addAll(old); out.sort(NEWEST_FIRST); dedupe(out); }
+                    return null;
+                });
+            } catch (SQLException e) { e.printStackTrace(); }
+            return out;
+        }
+
+        private static Workout readWorkout(ResultSet rs) throws SQLException {
+            return new Workout(rs.getInt("id"), rs.getInt("user_id"), rs.getLong("ts"), rs.getInt("tz_offset"),
+                    rs.getInt("duration_seconds"), rs.getDouble("calories"), rs.getString("note"));
+        }
+
+        // Workouts with from <= ts < to, newest first.
+        List<Workout> getWorkoutsBetween(int userId, long from, long to) throws SQLException {
+            return pool.read("db.getWorkoutsBetween", c -> {
+                PreparedStatement ps = c.prepare(WORKOUTS_BETWEEN);
+                ps.setInt(1, userId); ps.setLong(2, from); ps.setLong(3, to);
+                List<Workout> out = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(readWorkout(rs));
+                }
+                List<Workout> old = archived(c, userId, from, to);
+                if (!old.isEmpty()) { out.addAll(old); out.sort(NEWEST_FIRST); dedupe(out); }
+                return out;
+            });
+        }
+
+        int countWorkoutsForUser(int userId) throws SQLException {
+            return pool.read("db.countWorkoutsForUser", c -> {
+                PreparedStatement ps = c.prepare(countWorkouts);
                 ps.setInt(1, userId);
-                ResultSet rs = ps.executeQuery();
+                try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+            });
+        }
+
+        static final Comparator<Workout> NEWEST_FIRST = Comparator.comparingLong((Workout w) -> w.ts).thenComparingInt(w -> w.id).reversed();
+
+        // Archiving commits the segments before it deletes the hot rows, so another process can briefly see a
+        // workout in both places (a crash in between is finished by finishMoves on the next open); row
+        // readers see each id once meanwhile.
+        private static void dedupe(List<Workout> rows) {
+            Set<Integer> seen = new HashSet<>();
+            rows.removeIf(w -> !seen.add(w.id));
+        }
+
+        List<Workout> archivedWorkouts(PooledConnection c, int userId) throws SQLException { return archived(c, userId, Long.MIN_VALUE, Long.MAX_VALUE); }
+
+        // Archived rows with from <= ts < to, newest first, decoding only the segments that overlap.
+        private List<Workout> archived(PooledConnection c, int userId, long from, long to) throws SQLException {
+            PreparedStatement ps = c.prepare(segmentsBetween);
+            ps.setInt(1, userId); ps.setLong(2, from); ps.setLong(3, to);
+            List<Workout> out = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) for (Workout w : WorkoutSegment.decode(userId, rs.getBytes(1))) if (w.ts >= from && w.ts < to) out.add(w);
+            }
+            out.sort(NEWEST_FIRST);
+            return out;
+        }
+
+        // Up to limit archived rows ordered before `after` (newest first), no older than floor.
+        private List<Workout> archivedBefore(PooledConnection c, int userId, Workout after, Workout floor, int limit) throws SQLException {
+            PreparedStatement ps = c.prepare(segmentsBefore);
+            ps.setInt(1, userId); ps.setLong(2, after == null ? Long.MAX_VALUE : after.ts); ps.setLong(3, floor == null ? Long.MIN_VALUE : floor.ts);
+            List<Workout> out = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    out.add(new Workout(rs.getInt("id"), rs.getInt("user_id"), rs.getString("date"),
-                            rs.getInt("duration_seconds"), rs.getDouble("calories"), rs.getString("note")));
+                    if (out.size() >= limit && rs.getLong(1) < out.get(limit - 1).ts) break;
+                    for (Workout w : WorkoutSegment.decode(userId, rs.getBytes(2)))
+                        if ((after == null || NEWEST_FIRST.compare(w, after) > 0) && (floor == null || NEWEST_FIRST.compare(w, floor) < 0)) out.add(w);
+                    out.sort(NEWEST_FIRST);
                 }
-                rs.close(); ps.close();
-            } catch (SQLException e) { e.printStackTrace(); }
+            }
+            return out.size() > limit ? new ArrayList<>(out.subList(0, limit)) : out;
+        }
+
+        PageSource<Workout> workoutPages(int userId) {
+            return new PageSource<Workout>() {
+                public int count() throws SQLException { return countWorkoutsForUser(userId); }
+                public List<Workout> fetch(Workout after, int limit) throws SQLException {
+                    if (after == null) Trace.record("workouts", userId);
+                    return workoutsAfter(userId, after, limit, false);
+                }
+                public List<Workout> keys(Workout after, int limit) throws SQLException { return workoutsAfter(userId, after, limit, true); }
+            };
+        }
+
+        static String workoutsAfterSql(boolean keysOnly, boolean after) {
+            return "SELECT " + (keysOnly ? "id, ts" : "*") + " FROM workouts WHERE user_id = ?" +
+                    (after ? " AND (ts < ? OR (ts = ? AND id < ?))" : "") + " ORDER BY ts DESC, id DESC LIMIT ?";
+        }
+
+        private List<Workout> workoutsAfter(int userId, Workout after, int limit, boolean keysOnly) throws SQLException {
+            return pool.read("db.workoutsAfter", c -> {
+                PreparedStatement ps = c.prepare(workoutsAfterSql(keysOnly, after != null));
+                int i = 1;
+                ps.setInt(i++, userId);
+                if (after != null) { ps.setLong(i++, after.ts); ps.setLong(i++, after.ts); ps.setInt(i++, after.id); }
+                ps.setInt(i, limit);
+                List<Workout> out = new ArrayList<>(limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(keysOnly ? new Workout(rs.getInt(1), userId, rs.getLong(2), 0, 0, 0, null) : readWorkout(rs));
+                    }
+                }
+                // Archived rows only matter if they sort ahead of the last hot row (or the hot rows ran out).
+                List<Workout> old = archivedBefore(c, userId, after, out.size() == limit ? out.get(limit - 1) : null, limit);
+                if (old.isEmpty()) return out;
+                out.addAll(old);
+                out.sort(NEWEST_FIRST);
+                dedupe(out);
+                return out.size() > limit ? new ArrayList<>(out.subList(0, limit)) : out;
+            });
+        }
+
+        long exportWorkoutsCsv(Integer userId, Writer out) throws SQLException, IOException {
+            CsvWriter csv = new CsvWriter(out);
+            if (userId == null) csv.field("user_id").field("username");
+            csv.field("date").field("duration_seconds").field("calories").field("note").endRow();
+            try {
+                return pool.read("db.exportWorkoutsCsv", c -> {
+                    PreparedStatement ps = c.prepare(userId == null ? EXPORT_ALL : EXPORT_USER);
+                    if (userId != null) ps.setInt(1, userId);
+                    ps.setFetchSize(1000);
+                    long n = 0;
+                    // Archived months precede a user's hot rows; users with only archived rows slot in by id.
+                    Map<Integer, String> archivedUsers = new TreeMap<>();
+                    if (userId == null) {
+                        try (ResultSet rs = c.prepare(usersWithSegments).executeQuery()) {
+                            while (rs.next()) archivedUsers.put(rs.getInt(1), rs.getString(2));
+                        }
+                    }
+                    int current = -1;
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            if (userId == null && rs.getInt(1) != current) n += exportArchived(csv, c, archivedUsers, current = rs.getInt(1));
+                            if (userId == null) csv.field(rs.getInt(1)).field(rs.getString(2));
+                            csv.field(Timestamps.iso(rs.getLong(3), rs.getInt(7))).field(rs.getInt(4)).field2dp(rs.getDouble(5)).field(rs.getString(6));
+                            try { csv.endRow(); } catch (IOException e) { throw new UncheckedIOException(e); }
+                            n++;
+                        }
+                    }
+                    if (userId != null) archivedUsers.put(userId, null);
+                    return n + exportArchived(csv, c, archivedUsers, Integer.MAX_VALUE);
+                });
+            } catch (UncheckedIOException e) { throw e.getCause(); }
+        }
+
+        // Writes archived rows of the users in `pending` up to and including upTo, then forgets them.
+        // A null username marks the single-user export, which runs newest first.
+        private long exportArchived(CsvWriter csv, PooledConnection c, Map<Integer, String> pending, int upTo) throws SQLException {
+            long n = 0;
+            for (Iterator<Map.Entry<Integer, String>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, String> e = it.next();
+                if (e.getKey() > upTo) break;
+                it.remove();
+                List<Workout> rows = archived(c, e.getKey(), Long.MIN_VALUE, Long.MAX_VALUE);
+                if (e.getValue() != null) Collections.reverse(rows);
+                for (Workout w : rows) {
+                    if (e.getValue() != null) csv.field(w.userId).field(e.getValue());
+                    csv.field(Timestamps.iso(w.ts, w.tzOffset)).field(w.durationSeconds).field2dp(w.calories).field(w.note);
+                    try { csv.endRow(); } catch (IOException ex) { throw new UncheckedIOException(ex); }
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        long importWorkoutsCsv(Reader in, Integer forUserId) throws SQLException, IOException {
+            WorkoutCsvParser parser = new WorkoutCsvParser(in, forUserId, this::userIdForName);
+            WorkoutRow r = new WorkoutRow();
+            try {
+                return pool.transaction("db.importWorkoutsCsv", c -> {
+                    PreparedStatement ps = c.prepare(INSERT_WORKOUT);
+                    long n = 0;
+                    try {
+                        while (parser.next(r)) {
+                            bindWorkout(ps, r);
+                            ps.addBatch();
+                            if (++n % IMPORT_BATCH == 0) ps.executeBatch();
+                        }
+                        ps.executeBatch();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally { ps.clearBatch(); }
+                    return n;
+                });
+            } catch (UncheckedIOException e) { throw e.getCause(); }
+            finally { workoutsChanged(); }
+        }
+
+        private void workoutAdded(WorkoutRow r, int id) {
+            recommendations.onWorkout(r);
+            analytics.onWorkout(r);
+            changes.publish(ChangeBus.Kind.WORKOUT_ADDED, r.userId, new Workout(id, r.userId, r.ts, r.tzOffset, r.durationSeconds, r.calories, r.note));
+        }
+
+        private void workoutsChanged() {
+            recommendations.invalidateAll();
+            analytics.invalidateAll();
+            changes.publish(ChangeBus.Kind.WORKOUTS_RELOADED, 0, null);
+        }
+
+        private Integer userIdForName(String username) {
+            User u = getUserByUsername(username);
+            return u == null ? null : u.id;
+        }
+
+        private static final String INSERT_WORKOUT = "INSERT INTO workouts(user_id,ts,tz_offset,duration_seconds,calories,note) VALUES(?,?,?,?,?,?)";
+
+        private static void bindWorkout(PreparedStatement ps, WorkoutRow r) throws SQLException {
+            ps.setInt(1, r.userId); ps.setLong(2, r.ts); ps.setInt(3, r.tzOffset);
+            ps.setInt(4, r.durationSeconds); ps.setDouble(5, r.calories); ps.setString(6, r.note);
+        }
+
+        // Accepts workouts immediately, journals them to <db>.pending, and commits them in batches.
+        // Records carry a sequence number; app_settings.journal_seq marks the last one committed,
+        // so a crash between commit and journal truncation cannot replay a row twice.
+        class WriteBehind {
+            private static final String END = "$";
+            private final Path journal;
+            private final int maxBatch;
+            private final long maxDelayMs;
+            private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+            private final Thread flusher;
+            private Writer journalOut;
+            private CsvWriter journalCsv;
+            private long nextSeq, committedSeq;
+            private long oldestQueuedAt;
+            private boolean closed;
+
+            private class Pending {
+                final long seq; final WorkoutRow row; final CompletableFuture<Integer> id = new CompletableFuture<>();
+                Pending(long seq, WorkoutRow row) { this.seq = seq; this.row = row; }
+            }
+
+            WriteBehind(Path journal, int maxBatch, long maxDelayMs) throws SQLException, IOException {
+                this.journal = journal; this.maxBatch = maxBatch; this.maxDelayMs = maxDelayMs;
+                String v = getSetting("journal_seq");
+                committedSeq = v == null ? 0 : Long.parseLong(v);
+                replay();
+                nextSeq = committedSeq + 1;
+                flusher = new Thread(this::run, "workout-write-behind");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+
+            synchronized CompletableFuture<Integer> submit(WorkoutRow row) {
+                if (closed) return CompletableFuture.failedFuture(new IllegalStateException("Write-behind queue is closed"));
+                Trace.record("submit", row.userId, Integer.toString(row.durationSeconds), Double.toString(row.calories), row.note);
+                Pending p = new Pending(nextSeq++, row.copy());
+                try {
+                    if (journal != null) {
+                        if (journalOut == null) {
+                            journalOut = Files.newBufferedWriter(journal, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                            journalCsv = new CsvWriter(journalOut);
+                        }
+                        journalCsv.field(p.seq).field(row.userId).field(row.ts).field(row.tzOffset).field(row.durationSeconds)
+                                .field(Double.toString(row.calories)).field(row.note).field(END).endRow();
+                        journalOut.flush();
+                    }
+                } catch (IOException e) {
+                    nextSeq--;
+                    return CompletableFuture.failedFuture(e);
+                }
+                boolean first = queue.isEmpty();
+                if (first) oldestQueuedAt = System.nanoTime();
+                queue.add(p);
+                if (first || queue.size() >= maxBatch) notifyAll();
+                return p.id;
+            }
+
+            private void run() {
+                long backoff = 100;
+                while (true) {
+                    List<Pending> batch;
+                    synchronized (this) {
+                        try {
+                            while (!closed && (queue.isEmpty() || (queue.size() < maxBatch && System.nanoTime() - oldestQueuedAt < maxDelayMs * 1_000_000L))) {
+                                if (queue.isEmpty()) wait();
+                                else wait(Math.max(1, maxDelayMs - (System.nanoTime() - oldestQueuedAt) / 1_000_000L));
+                            }
+                        } catch (InterruptedException e) { return; }
+                        if (queue.isEmpty()) { notifyAll(); return; }
+                        batch = new ArrayList<>(queue);
+                        queue.clear();
+                    }
+                    try {
+                        commit(batch);
+                        backoff = 100;
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                        synchronized (this) {
+                            for (int i = batch.size() - 1; i >= 0; i--) queue.addFirst(batch.get(i));
+                            oldestQueuedAt = System.nanoTime();
+                            try { wait(backoff); } catch (InterruptedException ie) { return; }
+                        }
+                        backoff = Math.min(backoff * 2, 5_000);
+                    }
+                }
+            }
+
+            private void commit(List<Pending> batch) throws SQLException {
+                long last = batch.get(batch.size() - 1).seq;
+                Map<Pending, Object> results = new HashMap<>();
+                pool.transaction("db.writeBehind.commit", c -> {
+                    PreparedStatement ps = c.prepare(INSERT_WORKOUT);
+                    for (Pending p : batch) {
+                        bindWorkout(ps, p.row);
+                        try { ps.executeUpdate(); results.put(p, c.lastInsertId()); }
+                        catch (SQLException e) {
+                            if (e.getErrorCode() != 19) throw e;
+                            results.put(p, e);
+                        }
+                    }
+                    setJournalSeq(c, last);
+                    return null;
+                });
+                for (Pending p : batch) {
+                    Object r = results.get(p);
+                    if (r instanceof Integer) { workoutAdded(p.row, (Integer) r); p.id.complete((Integer) r); }
+                    else p.id.completeExceptionally((Throwable) r);
+                }
+                synchronized (this) {
+                    committedSeq = last;
+                    if (queue.isEmpty() && committedSeq == nextSeq - 1) truncateJournal();
+                }
+            }
+
+            private void setJournalSeq(PooledConnection c, long seq) throws SQLException {
+                PreparedStatement ps = c.prepare("INSERT INTO app_settings(key, value) VALUES('journal_seq', ?) ON CONFLICT(key) DO UPDATE SET value = excluded.value");
+                ps.setString(1, Long.toString(seq));
+                ps.executeUpdate();
+            }
+
+            private void truncateJournal() {
+                if (journal == null) return;
+                try {
+                    if (journalOut != null) { journalOut.close(); journalOut = null; journalCsv = null; }
+                    Files.deleteIfExists(journal);
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+
+            // A record is only trusted if its trailing END marker made it to disk.
+            private void replay() throws IOException, SQLException {
+                if (journal == null || !Files.exists(journal)) return;
+                List<WorkoutRow> rows = new ArrayList<>();
+                long last = committedSeq;
+                try (BufferedReader in = Files.newBufferedReader(journal)) {
+                    CsvReader csv = new CsvReader(in);
+                    List<String> f = new ArrayList<>();
+                    while (csv.next(f)) {
+                        int n = f.size();
+                        if ((n != 7 && n != 8) || !END.equals(f.get(n - 1))) continue;
+                        try {
+                            long seq = Long.parseLong(f.get(0));
+                            if (seq <= committedSeq) continue;
+                            WorkoutRow r = new WorkoutRow();
+                            r.userId = Integer.parseInt(f.get(1));
+                            int i = 2;
+                            // Seven-field records were written before ts/tz_offset and carry an ISO date.
+                            if (n == 8) { r.ts = Long.parseLong(f.get(i++)); r.tzOffset = Integer.parseInt(f.get(i++)); }
+                            else Timestamps.parse(f.get(i++), r);
+                            r.durationSeconds = Integer.parseInt(f.get(i++)); r.calories = Double.parseDouble(f.get(i++)); r.note = f.get(i);
+                            rows.add(r);
+                            last = Math.max(last, seq);
+                        } catch (NumberFormatException | DateTimeParseException ignored) {}
+                    }
+                }
+                long replayTo = last;
+                int replayed = pool.transaction("db.writeBehind.replay", c -> {
+                    PreparedStatement ps = c.prepare(INSERT_WORKOUT);
+                    int n = 0;
+                    for (WorkoutRow r : rows) {
+                        bindWorkout(ps, r);
+                        try { ps.executeUpdate(); n++; }
+                        catch (SQLException e) { if (e.getErrorCode() != 19) throw e; }
+                    }
+                    setJournalSeq(c, replayTo);
+                    return n;
+                });
+                committedSeq = replayTo;
+                if (replayed > 0) System.err.println("Recovered " + replayed + " buffered workout(s) from " + journal);
+                Files.deleteIfExists(journal);
+            }
+
+            void close() {
+                synchronized (this) { closed = true; notifyAll(); }
+                try { flusher.join(10_000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                synchronized (this) { if (journalOut != null) { try { journalOut.close(); } catch (IOException ignored) {} journalOut = null; } }
+            }
+        }
+
+        WorkoutBatchWriter batchWriter(int batchSize, int commitRows, long commitMillis) {
+            return new WorkoutBatchWriter(batchSize, commitRows, commitMillis);
+        }
+
+        class WorkoutBatchWriter implements AutoCloseable {
+            private final int batchSize, commitRows;
+            private final long commitMillis;
+            private final List<WorkoutRow> pending = new ArrayList<>();
+            private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "workout-batch-commit"); t.setDaemon(true); return t;
+            });
+            private long lastCommit = System.nanoTime();
+            private long written;
+            private SQLException failure;
+
+            private WorkoutBatchWriter(int batchSize, int commitRows, long commitMillis) {
+                this.batchSize = batchSize; this.commitRows = commitRows; this.commitMillis = commitMillis;
+                timer.scheduleWithFixedDelay(this::flushIfDue, commitMillis, Math.max(1, commitMillis / 4), TimeUnit.MILLISECONDS);
+            }
+
+            synchronized void add(WorkoutRow r) throws SQLException {
+                if (failure != null) throw failure;
+                pending.add(r.copy());
+                if (pending.size() >= commitRows || System.nanoTime() - lastCommit >= commitMillis * 1_000_000L) flush();
+            }
+
+            synchronized long written() { return written; }
+
+            private synchronized void flushIfDue() {
+                if (pending.isEmpty() || System.nanoTime() - lastCommit < commitMillis * 1_000_000L) return;
+                try { flush(); } catch (SQLException e) { failure = e; }
+            }
+
+            synchronized void flush() throws SQLException {
+                lastCommit = System.nanoTime();
+                if (pending.isEmpty()) return;
+                pool.transaction("db.batchWriter.flush", c -> {
+                    PreparedStatement ps = c.prepare(INSERT_WORKOUT);
+                    try {
+                        int n = 0;
+                        for (WorkoutRow r : pending) {
+                            bindWorkout(ps, r);
+                            ps.addBatch();
+                            if (++n % batchSize == 0) ps.executeBatch();
+                        }
+                        ps.executeBatch();
+                    } finally { ps.clearBatch(); }
+                    return null;
+                });
+                written += pending.size();
+                pending.clear();
+                workoutsChanged();
+            }
+
+            @Override public synchronized void close() throws SQLException {
+                timer.shutdownNow();
+                if (failure != null) throw failure;
+                flush();
+            }
+        }
+
+        void rebuildRollups() throws SQLException {
+            pool.transaction("db.rebuildRollups", c -> {
+                try (Statement st = c.conn.createStatement()) {
+                    st.execute("DELETE FROM workout_daily");
+                    st.execute("DELETE FROM workout_weekly");
+                    st.execute("DELETE FROM workout_totals");
+                    st.execute(REBUILD_DAILY);
+                    st.execute(REBUILD_WEEKLY);
+                    st.execute(REBUILD_TOTALS);
+                    mergeArchivedRollups(c, st);
+                }
+                return null;
+            });
+            workoutsChanged();
+        }
+
+        // Archived workouts still count towards rollups, so a rebuild adds them back from the segments.
+        private void mergeArchivedRollups(PooledConnection c, Statement st) throws SQLException {
+            st.execute("CREATE TEMP TABLE IF NOT EXISTS archived_rows (user_id INTEGER, ts INTEGER, tz_offset INTEGER, duration_seconds INTEGER, calories REAL)");
+            st.execute("DELETE FROM temp.archived_rows");
+            PreparedStatement ins = c.prepare("INSERT INTO temp.archived_rows VALUES(?,?,?,?,?)");
+            try (ResultSet rs = st.executeQuery("SELECT user_id, data FROM " + segments)) {
+                while (rs.next()) {
+                    for (Workout w : WorkoutSegment.decode(rs.getInt(1), rs.getBytes(2))) {
+                        ins.setInt(1, w.userId); ins.setLong(2, w.ts); ins.setInt(3, w.tzOffset); ins.setInt(4, w.durationSeconds); ins.setDouble(5, w.calories);
+                        ins.addBatch();
+                    }
+                    ins.executeBatch();
+                }
+            } finally { ins.clearBatch(); }
+            st.execute(mergeRollup("workout_daily", "user_id, day", "user_id, " + dayOf("")));
+            st.execute(mergeRollup("workout_weekly", "user_id, week", "user_id, " + weekOf("")));
+            st.execute(mergeRollup("workout_totals", "user_id", "user_id"));
+            st.execute("DROP TABLE temp.archived_rows");
+        }
+
+        private static String mergeRollup(String table, String key, String keyValues) {
+            String groupBy = key.contains(",") ? "1, 2" : "1";
+            return "INSERT INTO " + table + " SELECT " + keyValues + ", COUNT(*), SUM(duration_seconds), SUM(calories), MAX(duration_seconds) " +
+                    "FROM temp.archived_rows WHERE user_id IN (SELECT id FROM users) GROUP BY " + groupBy + " " +
+                    "ON CONFLICT(" + key + ") DO UPDATE SET sessions = sessions + excluded.sessions, total_seconds = total_seconds + excluded.total_seconds, " +
+                    "total_kcal = total_kcal + excluded.total_kcal, max_seconds = MAX(max_seconds, excluded.max_seconds)";
+        }
+
+        // Moves workouts older than cutoff into per-user, per-month segments, one user per transaction
+        // so other writers get the lock in between. Rollups are untouched: nothing on workouts
+        // subtracts from them on delete. Search does not cover archived segments: the FTS delete trigger
+        // drops the notes of archived workouts from search_index.
+        static final String ARCHIVE_CANDIDATES = "SELECT id FROM users u WHERE EXISTS (SELECT 1 FROM workouts w WHERE w.user_id = u.id AND w.ts < ?)";
+        static final String ARCHIVE_ROWS = "SELECT * FROM workouts WHERE user_id = ? AND ts < ? ORDER BY ts, id";
+        static final String DELETE_WORKOUT = "DELETE FROM workouts WHERE id = ?";
+
+        int archiveOlderThan(long cutoff) throws SQLException {
+            List<Integer> users = pool.read("db.archiveCandidates", c -> {
+                PreparedStatement ps = c.prepare(ARCHIVE_CANDIDATES);
+                ps.setLong(1, cutoff);
+                List<Integer> out = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) { while (rs.next()) out.add(rs.getInt(1)); }
+                return out;
+            });
+            finishMoves(null);
+            pool.write("db.archiveOrphans", c -> c.prepare("DELETE FROM " + segments + " WHERE user_id NOT IN (SELECT id FROM users)").executeUpdate());
+            int moved = 0;
+            for (int uid : users) moved += archiveUser(uid, cutoff);
+            return moved;
+        }
+
+        // Segments first, together with the moved ids in archive_moves; then finishMoves deletes those hot
+        // rows. Main and the attached archive are separate WAL files, so one transaction over both is not
+        // atomic and a crash could keep the delete but lose the segments. The delete goes by id so rows
+        // backdated in between stay hot.
+        private int archiveUser(int userId, long cutoff) throws SQLException {
+            List<Integer> ids = new ArrayList<>();
+            int n = pool.transaction("db.archiveUser", c -> {
+                PreparedStatement sel = c.prepare(ARCHIVE_ROWS);
+                sel.setInt(1, userId); sel.setLong(2, cutoff);
+                Map<String, List<Workout>> months = new TreeMap<>();
+                try (ResultSet rs = sel.executeQuery()) {
+                    while (rs.next()) {
+                        Workout w = readWorkout(rs);
+                        ids.add(w.id);
+                        LocalDateTime t = Timestamps.local(w.ts, w.tzOffset);
+                        months.computeIfAbsent(String.format("%04d-%02d", t.getYear(), t.getMonthValue()), k -> new ArrayList<>()).add(w);
+                    }
+                }
+                PreparedStatement old = c.prepare(segmentForMonth);
+                PreparedStatement put = c.prepare(putSegment);
+                PreparedStatement moved = c.prepare("INSERT OR IGNORE INTO " + moves + "(id) VALUES(?)");
+                for (Map.Entry<String, List<Workout>> e : months.entrySet()) {
+                    List<Workout> rows = e.getValue();
+                    old.setInt(1, userId); old.setString(2, e.getKey());
+                    try (ResultSet rs = old.executeQuery()) {
+                        if (rs.next()) {
+                            rows.addAll(WorkoutSegment.decode(userId, rs.getBytes(1)));
+                            rows.sort(NEWEST_FIRST.reversed());
+                            dedupe(rows);
+                        }
+                    }
+                    put.setInt(1, userId); put.setString(2, e.getKey()); put.setInt(3, rows.size());
+                    put.setLong(4, rows.get(0).ts); put.setLong(5, rows.get(rows.size() - 1).ts);
+                    put.setBytes(6, WorkoutSegment.encode(rows));
+                    put.executeUpdate();
+                }
+                try {
+                    for (int id : ids) { moved.setInt(1, id); moved.addBatch(); }
+                    moved.executeBatch();
+                } finally { moved.clearBatch(); }
+                return ids.size();
+            });
+            if (n == 0) return 0;
+            finishMoves(ids);
+            return n;
+        }
+
+        // Deletes the hot copies of moved rows, then forgets the ids; null finishes whatever archive_moves
+        // holds, i.e. moves a crash interrupted. Both steps can repeat safely: ids are never reused.
+        private void finishMoves(List<Integer> ids) throws SQLException {
+            List<Integer> pending = ids != null ? ids : pool.read("db.pendingMoves", c -> {
+                List<Integer> out = new ArrayList<>();
+                try (ResultSet rs = c.prepare("SELECT id FROM " + moves).executeQuery()) { while (rs.next()) out.add(rs.getInt(1)); }
+                return out;
+            });
+            if (pending.isEmpty()) return;
+            for (String sql : new String[] {DELETE_WORKOUT, "DELETE FROM " + moves + " WHERE id = ?"}) {
+                pool.transaction("db.finishMoves", c -> {
+                    PreparedStatement del = c.prepare(sql);
+                    try {
+                        for (int id : pending) { del.setInt(1, id); del.addBatch(); }
+                        return del.executeBatch().length;
+                    } finally { del.clearBatch(); }
+                });
+            }
+        }
+
+        // Hands free pages back to the file system in short steps, each its own trip through the
+        // write lock, until nothing is free or the time budget is spent. Returns pages freed.
+        long incrementalVacuum(long budgetMillis) throws SQLException {
+            long deadline = System.nanoTime() + budgetMillis * 1_000_000L, freed = 0;
+            for (String schema : pool.archive == null ? new String[]{"main"} : new String[]{"main", "archive"}) {
+                while (System.nanoTime() < deadline) {
+                    long step = pool.write("db.incrementalVacuum", c -> {
+                        long before = pragmaLong(c, schema + ".freelist_count");
+                        if (before == 0 || pragmaLong(c, schema + ".auto_vacuum") != 2) return 0L;
+                        try (Statement st = c.conn.createStatement()) {
+                            st.execute("PRAGMA " + schema + ".incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+                        }
+                        return before - pragmaLong(c, schema + ".freelist_count");
+                    });
+                    if (step <= 0) break;
+                    freed += step;
+                }
+            }
+            return freed;
+        }
+
+        private static long pragmaLong(PooledConnection c, String pragma) throws SQLException {
+            try (Statement st = c.conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA " + pragma)) { return rs.next() ? rs.getLong(1) : 0; }
+        }
+
+        // Files created before auto_vacuum was enabled need one full VACUUM to switch to INCREMENTAL. That
+        // holds the writer for as long as it takes, so only the explicit archive command runs it.
+        // VACUUM refuses to run next to the writer's cached statements, so it gets a connection of its own
+        // while the writer is held.
+        boolean enableIncrementalVacuum() throws SQLException {
+            return pool.write("db.enableIncrementalVacuum", w -> {
+                boolean changed = false;
+                PooledConnection c = pool.open(false);
+                try (Statement st = c.conn.createStatement()) {
+                    for (String schema : pool.archive == null ? new String[]{"main"} : new String[]{"main", "archive"}) {
+                        if (pragmaLong(c, schema + ".auto_vacuum") == 2) continue;
+                        st.execute("PRAGMA " + schema + ".auto_vacuum = INCREMENTAL");
+                        st.execute("VACUUM " + schema);
+                        changed = true;
+                    }
+                } finally { c.close(); }
+                return changed;
+            });
+        }
+
+        // Retention in the background for the desktop app and the server, all opt-in: archive workouts
+        // older than -Dftracker.archiveAfterDays daily, snapshot every -Dftracker.backupEveryHours (both
+        // default 0, off), and trim free pages every minute on files that use incremental auto-vacuum.
+        synchronized void startMaintenance() {
+            if (maintenance != null) return;
+            maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "db-maintenance"); t.setDaemon(true); t.setPriority(Thread.MIN_PRIORITY); return t;
+            });
+            int days = Integer.getInteger("ftracker.archiveAfterDays", 0);
+            if (days > 0) maintenance.scheduleWithFixedDelay(() -> {
+                try { archiveOlderThan(System.currentTimeMillis() - days * 86_400_000L); } catch (SQLException e) { e.printStackTrace(); }
+            }, 2, 24 * 60, TimeUnit.MINUTES);
+            maintenance.scheduleWithFixedDelay(() -> {
+                try { incrementalVacuum(200); } catch (SQLException e) { e.printStackTrace(); }
+            }, 1, 1, TimeUnit.MINUTES);
+            long backupHours = Long.getLong("ftracker.backupEveryHours", 0);
+            if (backupHours > 0 && sidecar(pool.url, "") != null) maintenance.scheduleWithFixedDelay(() -> {
+                try { Backup.of(this).run(); } catch (Exception e) { e.printStackTrace(); }
+            }, backupHours * 60, backupHours * 60, TimeUnit.MINUTES);
+        }
+
+        static final String DAILY_BETWEEN = "SELECT day, sessions, total_seconds, total_kcal, max_seconds FROM workout_daily WHERE user_id = ? AND day > ? AND day <= ?";
+        static final String WEEKLY_BETWEEN = "SELECT week, sessions, total_seconds, total_kcal, max_seconds FROM workout_weekly WHERE user_id = ? AND week > ? AND week <= ?";
+        static final String WEEKLY_SINCE = "SELECT week, sessions, total_seconds, total_kcal, max_seconds FROM workout_weekly WHERE user_id = ? AND week >= ?";
+        static final String TOTALS_FOR_USER = "SELECT user_id, sessions, total_seconds, total_kcal, max_seconds FROM workout_totals WHERE user_id = ?";
+        // Per week since a start ts: how many workouts ran below, between and above two kcal/h rates.
+        static final String INTENSITY_MIX = "SELECT " + weekOf("") + ", SUM(rate < ?), SUM(rate >= ? AND rate < ?), SUM(rate >= ?) " +
+                "FROM (SELECT ts, tz_offset, calories * 3600.0 / duration_seconds AS rate FROM workouts WHERE user_id = ? AND ts >= ? AND duration_seconds > 0) GROUP BY 1";
+
+        ProgressStats getProgressStats(int userId) throws SQLException {
+            Trace.record("stats", userId);
+            LocalDate today = LocalDate.now();
+            LocalDate monday = today.with(DayOfWeek.MONDAY);
+            ProgressStats st = new ProgressStats();
+            return pool.read("db.getProgressStats", c -> {
+                Map<String, Rollup> days = readRollups(c, DAILY_BETWEEN, userId, today.minusDays(7).toString(), today.toString());
+                days.values().forEach(st.last7Days::add);
+                if (days.containsKey(today.toString())) st.today.add(days.get(today.toString()));
+                Map<String, Rollup> weeks = readRollups(c, WEEKLY_BETWEEN, userId, monday.minusWeeks(4).toString(), monday.toString());
+                weeks.values().forEach(st.last4Weeks::add);
+                if (weeks.containsKey(monday.toString())) st.thisWeek.add(weeks.get(monday.toString()));
+                readRollups(c, TOTALS_FOR_USER, userId)
+                        .values().forEach(st.allTime::add);
+                return st;
+            });
+        }
+
+        static Map<String, Rollup> readRollups(PooledConnection c, String sql, Object... params) throws SQLException {
+            PreparedStatement ps = c.prepare(sql);
+            for (int i = 0; i < params.length; i++) ps.setObject(i + 1, params[i]);
+            Map<String, Rollup> out = new LinkedHashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Rollup r = new Rollup();
+                    r.sessions = rs.getInt(2); r.totalSeconds = rs.getLong(3); r.totalKcal = rs.getDouble(4); r.maxSeconds = rs.getInt(5);
+                    out.put(rs.getString(1), r);
+                }
+            }
             return out;
         }
 
         Integer addInstruction(int userId, int adminId, String text) {
-            try (Connection c = DriverManager.getConnection(URL);
-                 PreparedStatement ps = c.prepareStatement("INSERT INTO instructions(user_id,admin_id,date,text) VALUES(?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
-                ps.setInt(1, userId); ps.setInt(2, adminId); ps.setString(3, DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now())); ps.setString(4, text);
-                ps.executeUpdate(); ResultSet rk = ps.getGeneratedKeys(); if (rk.next()) { int id = rk.getInt(1); rk.close(); ps.close(); return id; }
+            try {
+                return pool.write("db.addInstruction", c -> {
+                    PreparedStatement ps = c.prepare("INSERT INTO instructions(user_id,admin_id,ts,tz_offset,text) VALUES(?,?,?,?,?)");
+                    long now = System.currentTimeMillis();
+                    ps.setInt(1, userId); ps.setInt(2, adminId); ps.setLong(3, now); ps.setInt(4, Timestamps.offsetAt(now)); ps.setString(5, text);
+                    ps.executeUpdate();
+                    return c.lastInsertId();
+                });
             } catch (SQLException e) { e.printStackTrace(); }
             return null;
         }
 
+        // One row per recipient, all stamped with the same time, in a single transaction.
+        int broadcastInstruction(Collection<Integer> userIds, int adminId, String text) throws SQLException {
+            Trace.record("instruct", adminId, text, Integer.toString(userIds.size()));
+            long now = System.currentTimeMillis();
+            int offset = Timestamps.offsetAt(now);
+            return pool.transaction("db.broadcastInstruction", c -> {
+                PreparedStatement ps = c.prepare("INSERT INTO instructions(user_id,admin_id,ts,tz_offset,text) VALUES(?,?,?,?,?)");
+                try {
+                    int n = 0;
+                    for (int id : userIds) {
+                        ps.setInt(1, id); ps.setInt(2, adminId); ps.setLong(3, now); ps.setInt(4, offset); ps.setString(5, text);
+                        ps.addBatch();
+                        if (++n % IMPORT_BATCH == 0) ps.executeBatch();
+                    }
+                    ps.executeBatch();
+                    return n;
+                } finally { ps.clearBatch(); }
+            });
+        }
+
+        // Quotes each word and makes the last a prefix, so typed input can't produce FTS syntax errors.
+        static String ftsQuery(String input) {
+            StringBuilder sb = new StringBuilder();
+            for (String t : input.trim().split("\\s+")) {
+                if (t.isEmpty()) continue;
+                if (sb.length() > 0) sb.append(' ');
+                sb.append('"').append(t.replace("\"", "\"\"")).append('"');
+            }
+            return sb.length() == 0 ? null : sb.append('*').toString();
+        }
+
+        static String searchSql(boolean forUser) {
+            return "SELECT search_index.rowid, search_index.user_id, u.username, snippet(search_index, 0, '[', ']', '...', 12), " +
+                    "COALESCE(w.ts, i.ts), COALESCE(w.tz_offset, i.tz_offset) FROM search_index JOIN users u ON u.id = search_index.user_id " +
+                    "LEFT JOIN workouts w ON search_index.rowid % 4 = " + SEARCH_WORKOUT + " AND w.id = search_index.rowid / 4 " +
+                    "LEFT JOIN instructions i ON search_index.rowid % 4 = " + SEARCH_INSTRUCTION + " AND i.id = search_index.rowid / 4 " +
+                    "WHERE search_index MATCH ?" + (forUser ? " AND search_index.user_id = ?" : "") + " ORDER BY bm25(search_index) LIMIT ? OFFSET ?";
+        }
+
+        // Best matches first (bm25); userId restricts to one user's notes, workouts and instructions.
+        List<SearchHit> search(String input, Integer userId, int offset, int limit) throws SQLException {
+            if (offset == 0) Trace.record("search", userId == null ? 0 : userId, input);
+            String match = ftsQuery(input);
+            if (match == null) return List.of();
+            return pool.read("db.search", c -> {
+                PreparedStatement ps = c.prepare(searchSql(userId != null));
+                int p = 1;
+                ps.setString(p++, match);
+                if (userId != null) ps.setInt(p++, userId);
+                ps.setInt(p++, limit); ps.setInt(p, offset);
+                List<SearchHit> out = new ArrayList<>(limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        long rowid = rs.getLong(1);
+                        long ts = rs.getLong(5);
+                        Long when = rs.wasNull() ? null : ts;
+                        out.add(new SearchHit((int) (rowid % 4), (int) (rowid / 4), rs.getInt(2), rs.getString(3), rs.getString(4), when, rs.getInt(6)));
+                    }
+                }
+                return out;
+            });
+        }
+
         List<Instruction> getInstructionsForUser(int userId) {
+            Trace.record("instructions", userId);
             List<Instruction> out = new ArrayList<>();
-            try (Connection c = DriverManager.getConnection(URL);
-                 PreparedStatement ps = c.prepareStatement("SELECT * FROM instructions WHERE user_id = ? ORDER BY date DESC")) {
-                ps.setInt(1, userId); ResultSet rs = ps.executeQuery();
-                while (rs.next()) out.add(new Instruction(rs.getInt("id"), rs.getInt("user_id"), rs.getInt("admin_id"), rs.getString("date"), rs.getString("text")));
-                rs.close(); ps.close();
+            try {
+                pool.read("db.getInstructionsForUser", c -> {
+                    PreparedStatement ps = c.prepare(INSTRUCTIONS_FOR_USER);
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) out.add(readInstruction(rs));
+                    }
+                    return null;
+                });
             } catch (SQLException e) { e.printStackTrace(); }
             return out;
         }
 
+        private static final String SELECT_INSTRUCTIONS = "SELECT i.id, i.user_id, i.admin_id, i.ts, i.tz_offset, i.text, a.username AS admin_name " +
+                "FROM instructions i LEFT JOIN users a ON a.id = i.admin_id ";
+        static final String INSTRUCTIONS_FOR_USER = SELECT_INSTRUCTIONS + "WHERE i.user_id = ? ORDER BY i.ts DESC, i.id DESC";
+        static final String INSTRUCTIONS_SINCE = SELECT_INSTRUCTIONS + "WHERE i.user_id = ? AND i.id > ? ORDER BY i.id";
+        static final String INSTRUCTION_MARK = "SELECT COALESCE(MAX(id), 0) FROM instructions WHERE user_id = ?";
+
+        private Instruction readInstruction(ResultSet rs) throws SQLException {
+            Instruction ins = new Instruction(rs.getInt("id"), rs.getInt("user_id"), rs.getInt("admin_id"), rs.getLong("ts"), rs.getInt("tz_offset"), rs.getString("text"), rs.getString("admin_name"));
+            if (ins.adminName != null) usernames.put(ins.adminId, ins.adminName);
+            return ins;
+        }
+
+        // New instructions for a watched user are published as INSTRUCTION_ADDED, whichever process
+        // wrote them. PRAGMA data_version on a connection of the poller's own changes whenever any
+        // other connection commits, so an idle poll is a single pragma and rows are only read after
+        // a commit, starting past the highest id already delivered.
+        synchronized void watchInstructions(int userId) throws SQLException {
+            int mark = pool.read("db.instructionMark", c -> {
+                PreparedStatement ps = c.prepare(INSTRUCTION_MARK);
+                ps.setInt(1, userId);
+                try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+            });
+            instructionMarks.put(userId, mark);
+            if (changePoller == null) {
+                changePoller = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "db-change-poller"); t.setDaemon(true); return t;
+                });
+                changePoller.scheduleWithFixedDelay(this::pollChanges, CHANGE_POLL_MS, CHANGE_POLL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void unwatchInstructions(int userId) { instructionMarks.remove(userId); }
+
+        private void pollChanges() {
+            if (instructionMarks.isEmpty()) return;
+            try {
+                if (pollConn == null) pollConn = pool.open(true);
+                long version;
+                try (ResultSet rs = pollConn.prepare("PRAGMA data_version").executeQuery()) {
+                    if (!rs.next()) throw new SQLException("PRAGMA data_version returned no row");
+                    version = rs.getLong(1);
+                }
+                if (version == dataVersion) return;
+                dataVersion = version;
+                long t0 = System.nanoTime();
+                PreparedStatement ps = pollConn.prepare(INSTRUCTIONS_SINCE);
+                for (Map.Entry<Integer, Integer> e : instructionMarks.entrySet()) {
+                    int mark = e.getValue();
+                    List<Instruction> fresh = new ArrayList<>();
+                    ps.setInt(1, e.getKey()); ps.setInt(2, mark);
+                    try (ResultSet rs = ps.executeQuery()) { while (rs.next()) fresh.add(readInstruction(rs)); }
+                    if (fresh.isEmpty() || !instructionMarks.replace(e.getKey(), mark, fresh.get(fresh.size() - 1).id)) continue;
+                    for (Instruction ins : fresh) changes.publish(ChangeBus.Kind.INSTRUCTION_ADDED, ins.userId, ins);
+                }
+                Metrics.GLOBAL.record("db.pollChanges", System.nanoTime() - t0, true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                if (pollConn != null) { pollConn.close(); pollConn = null; }
+                dataVersion = -1;
+            }
+        }
+
     } 
-    private final DB db = new DB();
+    static final long MAIN_NANOS = System.nanoTime(), MAIN_MILLIS = System.currentTimeMillis();
+
     private User currentUser = null;
 
+    private final JProgressBar busyBar = new JProgressBar();
+    private final JLabel busyLabel = new JLabel(" ");
+    private final Background bg = new Background(this::showBusy);
+    // Opening the DB runs migrations and schema checks, so it happens on the background pool while
+    // the login frame paints. Nothing touches db, auth or sessions before login, which chains onto dbReady.
+    private volatile DB db;
+    private volatile Auth auth;
+    private final CompletableFuture<DB> dbReady = bg.call(() -> {
+        DB d = new DB();
+        d.startMaintenance();
+        auth = new Auth(d);
+        sessions = new SessionStore(d.pool.url);
+        d.changes.subscribe(c -> SwingUtilities.invokeLater(() -> onChange(c)));
+        return db = d;
+    });
+
     private final JTextField loginUserField = new JTextField();
     private final JPasswordField loginPassField = new JPasswordField();
 
     private final CardLayout cards = new CardLayout();
     private final JPanel cardPanel = new JPanel(cards);
+    private final Set<String> builtCards = new HashSet<>();
 
-    private final DefaultTableModel usersModel = new DefaultTableModel(new String[]{"ID","Username","Role","Height(cm)","Weight(kg)","Notes"},0);
+    private final PagedTableModel<User> usersModel = new PagedTableModel<>("users", new String[]{"ID","Username","Role","Height(cm)","Weight(kg)","Notes"}, bg, (u, col) -> switch (col) {
+        case 0 -> u.id; case 1 -> u.username; case 2 -> u.role;
+        case 3 -> u.heightCm==null?"":u.heightCm; case 4 -> u.weightKg==null?"":u.weightKg;
+        default -> u.healthNotes==null?"":u.healthNotes;
+    });
     private final JTable usersTable = new JTable(usersModel);
     private final JTextArea adminInstructionArea = new JTextArea(4,40);
 
     private final JLabel userWelcome = new JLabel();
+    private final JLabel statsLabel = new JLabel(" ");
     private final JTextField heightField = new JTextField();
     private final JTextField weightField = new JTextField();
     private final JTextArea healthNotesArea = new JTextArea(3,30);
-    private final DefaultTableModel workoutsModel = new DefaultTableModel(new String[]{"Date","Duration","Calories","Note"}, 0);
+    private final PagedTableModel<Workout> workoutsModel = new PagedTableModel<>("workouts", new String[]{"Date","Duration","Calories","Note"}, bg, (w, col) -> switch (col) {
+        case 0 -> Timestamps.display(w.ts, w.tzOffset); case 1 -> formatDuration(w.durationSeconds);
+        case 2 -> String.format("%.1f", w.calories); default -> w.note==null?"":w.note;
+    });
     private final JTable workoutsTable = new JTable(workoutsModel);
     private final DefaultTableModel instrModel = new DefaultTableModel(new String[]{"Date","From Admin","Instruction"},0);
+    private int lastInstructionId;
+    private static final Comparator<User> USER_ORDER = Comparator.comparingInt((User u) -> u.id).reversed();
     private final JTable instrTable = new JTable(instrModel);
+    private final SearchPanel adminSearch = new SearchPanel(bg, (q, uid, off, n) -> db.search(q, uid, off, n));
+    private final SearchPanel userSearch = new SearchPanel(bg, (q, uid, off, n) -> db.search(q, uid, off, n));
 
-    private LocalDateTime timerStart = null;
+    private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private volatile WorkoutSession session = null;
+    private volatile SessionStore sessions;
     private javax.swing.Timer uiTimer = null;
-    private final JLabel timerLabel = new JLabel("00:00:00");
-    private int accumulatedSeconds = 0;
+    private final TimerLabel timerLabel = new TimerLabel();
+    private final JButton pauseBtn = new JButton("Pause");
+    private final JTextArea recArea = new JTextArea(4,60);
+    private long lastCheckpoint, lastInterval;
 
     public FitnessTrackerApp() {
         super("Fitness Tracker - Admin & User");
@@ -253,37 +4624,75 @@ public class FitnessTrackerApp extends JFrame {
         add(top, BorderLayout.NORTH);
         cardPanel.setBorder(BorderFactory.createEmptyBorder(8,8,8,8));
         cardPanel.add(new JLabel("<html><h2>Welcome — please log in (admin: admin/admin123)</h2></html>"), "WELCOME");
-        cardPanel.add(createAdminPanel(), "ADMIN");
-        cardPanel.add(createUserPanel(), "USER");
         add(cardPanel, BorderLayout.CENTER);
+        JPanel status = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 2));
+        busyBar.setIndeterminate(true); busyBar.setVisible(false);
+        status.add(busyBar); status.add(busyLabel);
+        add(status, BorderLayout.SOUTH);
         cards.show(cardPanel, "WELCOME");
 
-        loginBtn.addActionListener(e -> doLogin());
+        loginBtn.addActionListener(Metrics.GLOBAL.timed("ui.login", this::doLogin));
         regUserBtn.addActionListener(e -> createUserDialog());
 
-        uiTimer = new javax.swing.Timer(1000, e -> updateTimerLabel());
+        uiTimer = new javax.swing.Timer(200, e -> onTimerTick());
+        uiTimer.setCoalesce(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            checkpointSessionNow(); bg.shutdown();
+            if (auth != null) auth.shutdown();
+            if (db != null) db.close();
+        }));
 
+        String report = System.getProperty("ftracker.startupReport");
+        if (report != null) reportStartup("exit".equals(report));
         setVisible(true);
     }
 
+    // Admin and user cards are built the first time they are shown, not at startup.
+    private void showCard(String name) {
+        if (builtCards.add(name)) cardPanel.add("ADMIN".equals(name) ? createAdminPanel() : createUserPanel(), name);
+        cards.show(cardPanel, name);
+    }
+
+    // -Dftracker.startupReport prints when the window opened and the DB became usable, measured from
+    // JVM start; "exit" quits right after, for startup-bench and for CDS archive training runs.
+    private void reportStartup(boolean exit) {
+        CompletableFuture<Long> opened = new CompletableFuture<>();
+        addWindowListener(new WindowAdapter() {
+            @Override public void windowOpened(WindowEvent e) { opened.complete(System.nanoTime()); }
+        });
+        opened.thenCombine(dbReady.thenApply(d -> System.nanoTime()), (window, ready) -> {
+            long jvm = ProcessHandle.current().info().startInstant().map(i -> MAIN_MILLIS - i.toEpochMilli()).orElse(0L);
+            long w = (window - MAIN_NANOS) / 1_000_000, d = (ready - MAIN_NANOS) / 1_000_000;
+            System.out.printf("startup: jvm-to-main=%d ms main-to-window=%d ms main-to-db=%d ms total=%d ms%n", jvm, w, d, jvm + Math.max(w, d));
+            return null;
+        }).whenComplete((v, t) -> {
+            if (t != null) t.printStackTrace();
+            if (exit) System.exit(t == null ? 0 : 1);
+        });
+    }
+
     private JPanel createAdminPanel() {
         JPanel p = new JPanel(new BorderLayout(8,8));
 
         JPanel left = new JPanel(new BorderLayout(6,6));
         left.add(new JLabel("<html><b>Users</b></html>"), BorderLayout.NORTH);
-        usersTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        usersTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         left.add(new JScrollPane(usersTable), BorderLayout.CENTER);
 
         JPanel userBtns = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton refreshBtn = new JButton("Refresh");
         JButton viewProfileBtn = new JButton("View/Edit Profile");
         JButton sendInstrBtn = new JButton("Send Instruction");
-        JButton deleteUserBtn = new JButton("Delete User");
+        JButton deleteUserBtn = new JButton("Delete Selected");
+        JButton exportAllBtn = new JButton("Export All CSV");
+        JButton importAllBtn = new JButton("Import CSV");
+        JButton backupBtn = new JButton("Back Up Now");
         userBtns.add(refreshBtn); userBtns.add(viewProfileBtn); userBtns.add(sendInstrBtn); userBtns.add(deleteUserBtn);
+        userBtns.add(exportAllBtn); userBtns.add(importAllBtn); userBtns.add(backupBtn);
         left.add(userBtns, BorderLayout.SOUTH);
 
         JPanel right = new JPanel(new BorderLayout(6,6));
-        right.add(new JLabel("<html><b>Compose instruction to selected user</b></html>"), BorderLayout.NORTH);
+        right.add(new JLabel("<html><b>Compose instruction to selected users</b></html>"), BorderLayout.NORTH);
         adminInstructionArea.setLineWrap(true); adminInstructionArea.setWrapStyleWord(true);
         right.add(new JScrollPane(adminInstructionArea), BorderLayout.CENTER);
 
@@ -291,23 +4700,31 @@ public class FitnessTrackerApp extends JFrame {
         instrBtns.add(sendInstrBtn);
         right.add(instrBtns, BorderLayout.SOUTH);
 
+        p.add(adminSearch, BorderLayout.NORTH);
         p.add(left, BorderLayout.WEST);
         p.add(right, BorderLayout.CENTER);
 
-        refreshBtn.addActionListener(e -> loadUsers());
+        refreshBtn.addActionListener(Metrics.GLOBAL.timed("ui.refreshUsers", this::loadUsers));
         viewProfileBtn.addActionListener(e -> editSelectedUserProfile());
         sendInstrBtn.addActionListener(e -> {
-            int sel = usersTable.getSelectedRow();
-            if (sel < 0) { JOptionPane.showMessageDialog(this, "Select a user first."); return; }
-            int uid = Integer.parseInt(usersModel.getValueAt(sel,0).toString());
+            List<Integer> ids = selectedUserIds();
+            if (ids == null) return;
             String text = adminInstructionArea.getText().trim();
             if (text.isEmpty()) { JOptionPane.showMessageDialog(this,"Enter instruction text."); return; }
-            db.addInstruction(uid, currentUser.id, text);
-            JOptionPane.showMessageDialog(this, "Instruction sent.");
-            adminInstructionArea.setText("");
+            int adminId = currentUser.id;
+            Background.onEdt(Metrics.GLOBAL.track("task.broadcastInstruction", bg.call(() -> db.broadcastInstruction(ids, adminId, text))), n -> {
+                JOptionPane.showMessageDialog(this, n == 1 ? "Instruction sent." : "Instruction sent to " + n + " users.");
+                adminInstructionArea.setText("");
+            }, e2 -> { e2.printStackTrace(); JOptionPane.showMessageDialog(this, "Failed to send instruction: " + e2.getMessage()); });
+        });
+        deleteUserBtn.addActionListener(e -> deleteSelectedUsers());
+        exportAllBtn.addActionListener(e -> exportWorkoutsCSV(null, "workouts_all.csv"));
+        backupBtn.addActionListener(e -> backupNow());
+        importAllBtn.addActionListener(e -> importWorkoutsCSV(null));
+        p.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl shift D"), "diagnostics");
+        p.getActionMap().put("diagnostics", new AbstractAction() {
+            @Override public void actionPerformed(ActionEvent e) { showDiagnostics(); }
         });
-        deleteUserBtn.addActionListener(e -> deleteSelectedUser());
-        loadUsers();
 
         return p;
     }
@@ -326,6 +4743,7 @@ public class FitnessTrackerApp extends JFrame {
         JButton saveProfileBtn = new JButton("Save Profile");
         profile.add(saveProfileBtn);
         top.add(profile, BorderLayout.CENTER);
+        top.add(statsLabel, BorderLayout.SOUTH);
 
         JPanel center = new JPanel(new GridLayout(1,2,8,8));
         JPanel left = new JPanel(new BorderLayout(6,6));
@@ -334,8 +4752,11 @@ public class FitnessTrackerApp extends JFrame {
 
         JPanel timerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 8));
         JButton startBtn = new JButton("Start");
+        JButton lapBtn = new JButton("Lap");
         JButton stopBtn = new JButton("Stop & Save");
-        timerPanel.add(startBtn); timerPanel.add(stopBtn); timerPanel.add(timerLabel);
+        JComboBox<String> intervalBox = new JComboBox<>(new String[]{"No intervals", "30 s intervals", "1 min intervals", "5 min intervals"});
+        timerPanel.add(startBtn); timerPanel.add(pauseBtn); timerPanel.add(lapBtn); timerPanel.add(stopBtn);
+        timerPanel.add(intervalBox); timerPanel.add(timerLabel);
         left.add(timerPanel, BorderLayout.SOUTH);
 
         JPanel right = new JPanel(new BorderLayout(6,6));
@@ -347,33 +4768,43 @@ public class FitnessTrackerApp extends JFrame {
         center.add(left); center.add(right);
 
         JPanel bottom = new JPanel(new BorderLayout(6,6));
-        JTextArea recArea = new JTextArea(4,60);
         recArea.setEditable(false); recArea.setLineWrap(true); recArea.setWrapStyleWord(true);
         bottom.add(new JLabel("<html><b>Recommendations</b></html>"), BorderLayout.NORTH);
         bottom.add(new JScrollPane(recArea), BorderLayout.CENTER);
         JButton exportBtn = new JButton("Export Workouts CSV");
-        bottom.add(exportBtn, BorderLayout.SOUTH);
+        JButton importBtn = new JButton("Import Workouts CSV");
+        JPanel csvBtns = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        csvBtns.add(exportBtn); csvBtns.add(importBtn);
+        bottom.add(csvBtns, BorderLayout.SOUTH);
 
-        p.add(top, BorderLayout.NORTH);
+        JPanel north = new JPanel(new BorderLayout(6,6));
+        north.add(top, BorderLayout.CENTER);
+        north.add(userSearch, BorderLayout.SOUTH);
+        p.add(north, BorderLayout.NORTH);
         p.add(center, BorderLayout.CENTER);
         p.add(bottom, BorderLayout.SOUTH);
-        saveProfileBtn.addActionListener(e -> {
+        saveProfileBtn.addActionListener(Metrics.GLOBAL.timed("ui.saveProfile", () -> {
             try {
                 Double h = heightField.getText().trim().isEmpty() ? null : Double.parseDouble(heightField.getText().trim());
                 Double w = weightField.getText().trim().isEmpty() ? null : Double.parseDouble(weightField.getText().trim());
                 String notes = healthNotesArea.getText().trim();
-                boolean ok = db.updateProfile(currentUser.id, h, w, notes);
-                if (ok) { JOptionPane.showMessageDialog(this, "Profile saved."); loadUserData(currentUser.id); }
-                else JOptionPane.showMessageDialog(this, "Failed to save profile.");
+                int uid = currentUser.id;
+                Background.onEdt(bg.call(() -> db.updateProfile(uid, h, w, notes)), ok -> {
+                    if (ok) JOptionPane.showMessageDialog(this, "Profile saved.");
+                    else JOptionPane.showMessageDialog(this, "Failed to save profile.");
+                }, this::showError);
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Enter valid numbers for height and weight.");
             }
-        });
+        }));
 
-        startBtn.addActionListener(e -> startTimer(recArea));
-        stopBtn.addActionListener(e -> stopTimerAndSave(recArea));
-        refreshInstr.addActionListener(e -> loadInstructionsForCurrent());
-        exportBtn.addActionListener(e -> exportWorkoutsCSV());
+        startBtn.addActionListener(e -> startTimer(new int[]{0, 30, 60, 300}[intervalBox.getSelectedIndex()]));
+        pauseBtn.addActionListener(e -> togglePause());
+        lapBtn.addActionListener(e -> lap());
+        stopBtn.addActionListener(e -> stopTimerAndSave());
+        refreshInstr.addActionListener(Metrics.GLOBAL.timed("ui.refreshInstructions", this::loadInstructionsForCurrent));
+        exportBtn.addActionListener(e -> exportWorkoutsCSV(currentUser.id, "workouts_" + currentUser.username + ".csv"));
+        importBtn.addActionListener(e -> importWorkoutsCSV(currentUser.id));
 
         return p;
     }
@@ -382,19 +4813,27 @@ public class FitnessTrackerApp extends JFrame {
         String u = loginUserField.getText().trim();
         String p = new String(loginPassField.getPassword()).trim();
         if (u.isEmpty() || p.isEmpty()) { JOptionPane.showMessageDialog(this, "Enter username and password."); return; }
-        User found = db.getUserByUsername(u);
-        if (found == null || !found.password.equals(p)) { JOptionPane.showMessageDialog(this, "Invalid credentials."); return; }
-        currentUser = found;
-        if ("admin".equals(found.role)) {
-            JOptionPane.showMessageDialog(this, "Logged in as admin: " + found.username);
-            loadUsers();
-            cards.show(cardPanel, "ADMIN");
-        } else {
-            JOptionPane.showMessageDialog(this, "Logged in as user: " + found.username);
-            loadUserData(found.id);
-            cards.show(cardPanel, "USER");
-        }
-        loginUserField.setText(""); loginPassField.setText("");
+        Background.onEdt(Metrics.GLOBAL.track("task.login", dbReady.thenCompose(d -> auth.login(u, p.toCharArray()))), found -> {
+            if (currentUser != null) db.unwatchInstructions(currentUser.id);
+            currentUser = found;
+            attachSession(found);
+            adminSearch.reset(null); userSearch.reset(found.id);
+            if ("admin".equals(found.role)) {
+                JOptionPane.showMessageDialog(this, "Logged in as admin: " + found.username);
+                showCard("ADMIN");
+                usersModel.setSource(db.userPages());
+            } else {
+                JOptionPane.showMessageDialog(this, "Logged in as user: " + found.username);
+                showCard("USER");
+                loadUserData(found.id);
+                int uid = found.id;
+                bg.call(() -> { db.watchInstructions(uid); return null; }).exceptionally(e -> { e.printStackTrace(); return null; });
+            }
+            loginUserField.setText(""); loginPassField.setText("");
+        }, e -> {
+            if (e instanceof LoginException) JOptionPane.showMessageDialog(this, e.getMessage());
+            else showError(e);
+        });
     }
 
     private void createUserDialog() {
@@ -409,24 +4848,41 @@ public class FitnessTrackerApp extends JFrame {
         if (opt != JOptionPane.OK_OPTION) return;
         String u = uname.getText().trim(); String pass = new String(upass.getPassword()).trim();
         if (u.isEmpty() || pass.isEmpty()) { JOptionPane.showMessageDialog(this, "Enter username & password."); return; }
-        Integer id = db.createUser(u, pass, "user");
-        if (id == null) JOptionPane.showMessageDialog(this, "Unable to create user (maybe username exists).");
-        else JOptionPane.showMessageDialog(this, "User created: " + u + " (id=" + id + ")");
+        Background.onEdt(dbReady.thenCompose(d -> bg.call(() -> d.createUser(u, pass, "user"))), id -> {
+            if (id == null) JOptionPane.showMessageDialog(this, "Unable to create user (maybe username exists).");
+            else JOptionPane.showMessageDialog(this, "User created: " + u + " (id=" + id + ")");
+        }, this::showError);
     }
 
     private void loadUsers() {
-        usersModel.setRowCount(0);
-        for (User u : db.listUsers()) {
-            usersModel.addRow(new Object[]{u.id, u.username, u.role, u.heightCm==null?"":u.heightCm, u.weightKg==null?"":u.weightKg, u.healthNotes==null?"":u.healthNotes});
+        usersModel.reload();
+    }
+
+    // Null (after telling the admin why) when nothing is selected or some selected rows are still loading.
+    private List<Integer> selectedUserIds() {
+        int[] rows = usersTable.getSelectedRows();
+        if (rows.length == 0) { JOptionPane.showMessageDialog(this, "Select one or more users first."); return null; }
+        List<Integer> ids = new ArrayList<>(rows.length);
+        for (int r : rows) {
+            User u = usersModel.itemAt(usersTable.convertRowIndexToModel(r));
+            if (u == null) { JOptionPane.showMessageDialog(this, "Some selected rows are still loading; try again in a moment."); return null; }
+            ids.add(u.id);
         }
+        return ids;
     }
 
     private void editSelectedUserProfile() {
-        int sel = usersTable.getSelectedRow();
-        if (sel < 0) { JOptionPane.showMessageDialog(this, "Select a user first."); return; }
-        int uid = Integer.parseInt(usersModel.getValueAt(sel,0).toString());
-        User u = db.getUserByUsername(usersModel.getValueAt(sel,1).toString());
-        if (u==null) { JOptionPane.showMessageDialog(this, "User not found."); return; }
+        User sel = usersModel.itemAt(usersTable.getSelectedRow());
+        if (sel == null) { JOptionPane.showMessageDialog(this, "Select a user first."); return; }
+        int uid = sel.id;
+        Background.onEdt(bg.call(() -> db.getUserById(uid)), u -> {
+            if (u==null) { JOptionPane.showMessageDialog(this, "User not found."); return; }
+            editUserProfile(u);
+        }, this::showError);
+    }
+
+    private void editUserProfile(User u) {
+        int uid = u.id;
         JPanel p = new JPanel(new GridLayout(3,2,6,6));
         JTextField h = new JTextField(u.heightCm==null?"":u.heightCm.toString());
         JTextField w = new JTextField(u.weightKg==null?"":u.weightKg.toString());
@@ -439,134 +4895,266 @@ public class FitnessTrackerApp extends JFrame {
         try {
             Double hh = h.getText().trim().isEmpty()?null:Double.parseDouble(h.getText().trim());
             Double ww = w.getText().trim().isEmpty()?null:Double.parseDouble(w.getText().trim());
-            db.updateProfile(uid, hh, ww, notes.getText().trim());
-            loadUsers();
-            JOptionPane.showMessageDialog(this, "Profile updated.");
+            String nn = notes.getText().trim();
+            Background.onEdt(bg.call(() -> db.updateProfile(uid, hh, ww, nn)), ok -> {
+                JOptionPane.showMessageDialog(this, ok ? "Profile updated." : "Failed to update profile.");
+            }, this::showError);
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Enter valid numbers.");
         }
     }
 
-    private void deleteSelectedUser() {
-        int sel = usersTable.getSelectedRow();
-        if (sel < 0) { JOptionPane.showMessageDialog(this, "Select a user first."); return; }
-        int uid = Integer.parseInt(usersModel.getValueAt(sel,0).toString());
-        int confirm = JOptionPane.showConfirmDialog(this, "Delete user id=" + uid + " ? This will remove their data.", "Confirm", JOptionPane.YES_NO_OPTION);
+    private void deleteSelectedUsers() {
+        List<Integer> ids = selectedUserIds();
+        if (ids == null) return;
+        if (ids.contains(currentUser.id)) { JOptionPane.showMessageDialog(this, "You can't delete the account you are logged in with."); return; }
+        String what = ids.size() == 1 ? "user id=" + ids.get(0) : ids.size() + " users";
+        int confirm = JOptionPane.showConfirmDialog(this, "Delete " + what + " ? This will remove their data.", "Confirm", JOptionPane.YES_NO_OPTION);
         if (confirm != JOptionPane.YES_OPTION) return;
-        try (Connection c = DriverManager.getConnection(DB.URL)) {
-            PreparedStatement ps = c.prepareStatement("DELETE FROM users WHERE id = ?");
-            ps.setInt(1, uid); ps.executeUpdate(); ps.close();
-            loadUsers();
-            JOptionPane.showMessageDialog(this, "User deleted.");
-        } catch (SQLException e) { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Delete failed: " + e.getMessage()); }
+        Background.onEdt(Metrics.GLOBAL.track("task.deleteUsers", bg.call(() -> db.deleteUsers(ids))), n -> {
+            JOptionPane.showMessageDialog(this, n == 1 ? "User deleted." : n + " users deleted.");
+        }, e -> { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Delete failed: " + e.getMessage()); });
     }
 
     private void loadUserData(int userId) {
-        User u = null;
-        try (Connection c = DriverManager.getConnection(DB.URL)) {
-            PreparedStatement ps = c.prepareStatement("SELECT * FROM users WHERE id = ?");
-            ps.setInt(1, userId); ResultSet rs = ps.executeQuery();
-            if (rs.next()) u = new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"), rs.getString("role"),
-                    rs.getObject("height_cm")==null?null:rs.getDouble("height_cm"),
-                    rs.getObject("weight_kg")==null?null:rs.getDouble("weight_kg"),
-                    rs.getString("health_notes"));
-            rs.close(); ps.close();
-        } catch (SQLException e) { e.printStackTrace(); }
-        if (u==null) { JOptionPane.showMessageDialog(this, "Couldn't load your profile."); return; }
-        currentUser = u;
-        userWelcome.setText("Hello, " + u.username + " (ID: " + u.id + ")");
-        heightField.setText(u.heightCm==null?"":u.heightCm.toString());
-        weightField.setText(u.weightKg==null?"":u.weightKg.toString());
-        healthNotesArea.setText(u.healthNotes==null?"":u.healthNotes);        refreshWorkouts();
-        loadInstructionsForCurrent();
-        computeAndShowRecommendations();
+        Background.onEdt(bg.coalesce("user:" + userId, () -> db.getUserById(userId)), u -> {
+            if (u==null) { JOptionPane.showMessageDialog(this, "Couldn't load your profile."); return; }
+            currentUser = u;
+            userWelcome.setText("Hello, " + u.username + " (ID: " + u.id + ")");
+            heightField.setText(u.heightCm==null?"":u.heightCm.toString());
+            weightField.setText(u.weightKg==null?"":u.weightKg.toString());
+            healthNotesArea.setText(u.healthNotes==null?"":u.healthNotes);
+            refreshWorkouts();
+            loadInstructionsForCurrent();
+            computeAndShowRecommendations();
+        }, this::showError);
     }
 
     private void refreshWorkouts() {
-        workoutsModel.setRowCount(0);
-        for (Workout w : db.getWorkoutsForUser(currentUser.id)) {
-            workoutsModel.addRow(new Object[]{ w.date, formatDuration(w.durationSeconds), String.format("%.1f", w.calories), w.note==null?"":w.note });
-        }
+        workoutsModel.setSource(db.workoutPages(currentUser.id));
+        refreshStats();
+    }
+
+    private void refreshStats() {
+        int uid = currentUser.id;
+        Background.onEdt(bg.coalesce("stats:" + uid, () -> {
+            ProgressStats st = db.getProgressStats(uid);
+            WorkoutColumns wc = db.analytics.columns(uid);
+            long todayStart = LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+            st.medianSeconds = wc.percentileSeconds(Long.MIN_VALUE, Long.MAX_VALUE, 50);
+            st.p90Seconds = wc.percentileSeconds(Long.MIN_VALUE, Long.MAX_VALUE, 90);
+            st.avgDailyKcal7 = wc.movingAverageKcal(todayStart, 1, 7)[0];
+            return st;
+        }), st -> statsLabel.setText("<html>" +
+                statsCell("Today", st.today) + " &nbsp; " + statsCell("This week", st.thisWeek) + " &nbsp; " +
+                statsCell("Last 7 days", st.last7Days) + "<br>" + statsCell("Last 4 weeks", st.last4Weeks) + " &nbsp; " +
+                statsCell("All time", st.allTime) + "<br>" + String.format("<b>Typical session:</b> %s (90th percentile %s) &nbsp; <b>7-day average:</b> %.0f kcal/day",
+                formatDuration(st.medianSeconds), formatDuration(st.p90Seconds), st.avgDailyKcal7) + "</html>"), this::showError);
+    }
+
+    private static String statsCell(String label, Rollup r) {
+        return String.format("<b>%s:</b> %d sessions, %s, %.0f kcal, longest %s", label, r.sessions,
+                formatDuration((int) r.totalSeconds), r.totalKcal, formatDuration(r.maxSeconds));
     }
 
     private void loadInstructionsForCurrent() {
-        instrModel.setRowCount(0);
-        List<Instruction> list = db.getInstructionsForUser(currentUser.id);
-        for (Instruction ins : list) {
-            String adminName = "admin";
-            try (Connection c = DriverManager.getConnection(DB.URL)) {
-                PreparedStatement ps = c.prepareStatement("SELECT username FROM users WHERE id = ?");
-                ps.setInt(1, ins.adminId);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) adminName = rs.getString(1);
-                rs.close(); ps.close();
-            } catch (SQLException e) { e.printStackTrace(); }
-            instrModel.addRow(new Object[]{ ins.date, adminName, ins.text });
+        int uid = currentUser.id;
+        Background.onEdt(Metrics.GLOBAL.track("task.loadInstructions", bg.coalesce("instructions:" + uid, () -> db.getInstructionsForUser(uid))), list -> {
+            instrModel.setRowCount(0);
+            lastInstructionId = 0;
+            for (Instruction ins : list) {
+                instrModel.addRow(instructionRow(ins));
+                lastInstructionId = Math.max(lastInstructionId, ins.id);
+            }
+        }, this::showError);
+    }
+
+    private static Object[] instructionRow(Instruction ins) {
+        return new Object[]{ Timestamps.display(ins.ts, ins.tzOffset), ins.adminName == null ? "admin" : ins.adminName, ins.text };
+    }
+
+    // Applies one committed change to whatever is on screen instead of reloading it.
+    private void onChange(ChangeBus.Change c) {
+        User me = currentUser;
+        if (me == null) return;
+        boolean admin = "admin".equals(me.role);
+        switch (c.kind) {
+            case WORKOUT_ADDED:
+                if (admin || c.userId != me.id) return;
+                workoutsModel.insert((Workout) c.row, DB.NEWEST_FIRST);
+                refreshStats();
+                computeAndShowRecommendations();
+                break;
+            case WORKOUTS_RELOADED:
+                if (admin) return;
+                refreshWorkouts();
+                computeAndShowRecommendations();
+                break;
+            case USER_ADDED:
+                if (admin) usersModel.insert((User) c.row, USER_ORDER);
+                break;
+            case USER_UPDATED: {
+                User p = (User) c.row;
+                if (admin) usersModel.updateIf(x -> x.id == c.userId, x -> new User(x.id, x.username, x.password, x.role, p.heightCm, p.weightKg, p.healthNotes));
+                else if (c.userId == me.id) {
+                    me.heightCm = p.heightCm; me.weightKg = p.weightKg; me.healthNotes = p.healthNotes;
+                    computeAndShowRecommendations();
+                }
+                break;
+            }
+            case USERS_DELETED: {
+                Collection<?> gone = (Collection<?>) c.row;
+                if (admin && usersModel.removeIf(u -> gone.contains(u.id)) < gone.size()) loadUsers();
+                break;
+            }
+            case INSTRUCTION_ADDED: {
+                Instruction ins = (Instruction) c.row;
+                if (c.userId != me.id || ins.id <= lastInstructionId) return;
+                lastInstructionId = ins.id;
+                instrModel.insertRow(0, instructionRow(ins));
+                busyLabel.setText("New instruction from " + instructionRow(ins)[1]);
+                break;
+            }
         }
     }
 
+    static double bmi(double heightCm, double weightKg) {
+        double m = heightCm / 100.0;
+        return weightKg / (m*m);
+    }
+
+    static double estimateCalories(double met, double weightKg, int seconds) {
+        return met * weightKg * (seconds / 3600.0);
+    }
+
     private void computeAndShowRecommendations() {
-        Double h = currentUser.heightCm;
-        Double w = currentUser.weightKg;
-        String notes = currentUser.healthNotes==null?"":currentUser.healthNotes.toLowerCase();
-        StringBuilder sb = new StringBuilder();
-        if (h==null || w==null) {
-            sb.append("Set your height and weight to get personalized recommendations.\n");
-        } else {
-            double m = h / 100.0;
-            double bmi = w / (m*m);
-            sb.append(String.format("Your BMI: %.1f\n", bmi));
-            if (bmi < 18.5) sb.append("Underweight: focus on gentle strength training and calorie-dense nutritious meals.\n");
-            else if (bmi < 25) sb.append("Normal weight: good job. Mix cardio, strength, and mobility.\n");
-            else if (bmi < 30) sb.append("Overweight: recommend regular moderate cardio and resistance training. Watch diet.\n");
-            else sb.append("Obese: focus on low-impact cardio (walking, cycling) and consult a healthcare professional before intense exercise.\n");
-        }
-        if (!notes.isEmpty()) {
-            sb.append("\nHealth notes: ").append(currentUser.healthNotes).append("\n");
-            sb.append("Because of health notes, avoid high-intensity without clearance; favor low-impact and supervised workouts.\n");
-        }
-        JTextArea ta = new JTextArea(sb.toString(), 10, 40);
-        ta.setEditable(false); ta.setWrapStyleWord(true); ta.setLineWrap(true);
-        JOptionPane.showMessageDialog(this, new JScrollPane(ta), "Recommendations", JOptionPane.INFORMATION_MESSAGE);
-    }
-
-    private void startTimer(JTextArea recArea) {
-        if (timerStart != null) { JOptionPane.showMessageDialog(this, "Timer already running."); return; }
-        timerStart = LocalDateTime.now();
+        int uid = currentUser.id;
+        Background.onEdt(bg.coalesce("recommendations:" + uid, () -> db.recommendations.text(uid)), text -> {
+            if (currentUser != null && currentUser.id == uid) recArea.setText(text);
+        }, this::showError);
+    }
+
+    private void startTimer(int intervalSeconds) {
+        if (session != null) { JOptionPane.showMessageDialog(this, "Timer already running."); return; }
+        session = new WorkoutSession(currentUser.id);
+        session.setIntervalSeconds(intervalSeconds);
+        session.resume();
+        sessions.begin(session);
+        lastInterval = 0;
+        timerLabel.setSeconds(0);
+        pauseBtn.setText("Pause");
         uiTimer.start();
-        timerLabel.setText("00:00:00");
+        checkpointSession();
         recArea.setText("Timer running... press Stop & Save when finished.");
     }
 
-    private void updateTimerLabel() {
-        if (timerStart == null) return;
-        Duration d = Duration.between(timerStart, LocalDateTime.now());
-        long s = d.getSeconds();
-        timerLabel.setText(formatDuration((int)s));
+    private void togglePause() {
+        WorkoutSession s = session;
+        if (s == null) { JOptionPane.showMessageDialog(this, "Timer is not running."); return; }
+        if (s.running()) { s.pause(); pauseBtn.setText("Resume"); recArea.setText("Paused at " + formatDuration((int) s.elapsedSeconds()) + "."); }
+        else { s.resume(); pauseBtn.setText("Pause"); recArea.setText("Timer running... press Stop & Save when finished."); }
+        timerLabel.setSeconds(s.elapsedSeconds());
+        checkpointSession();
+    }
+
+    private void lap() {
+        WorkoutSession s = session;
+        if (s == null || !s.running()) return;
+        long lap = s.lap();
+        recArea.append("\nLap " + s.laps().size() + ": " + formatDuration((int) (lap / 1_000_000_000L)));
+        checkpointSession();
+    }
+
+    private void onTimerTick() {
+        WorkoutSession s = session;
+        if (s == null) return;
+        timerLabel.setSeconds(s.elapsedSeconds());
+        long interval = s.interval();
+        if (interval != lastInterval) {
+            lastInterval = interval;
+            Toolkit.getDefaultToolkit().beep();
+            recArea.append("\nInterval " + interval + " done.");
+        }
+        if (s.running() && System.nanoTime() - lastCheckpoint >= CHECKPOINT_NANOS) checkpointSession();
+    }
+
+    private void checkpointSession() {
+        WorkoutSession s = session;
+        if (s == null) return;
+        lastCheckpoint = System.nanoTime();
+        Properties p = s.checkpoint();
+        bg.call(() -> { sessions.saveIfActive(s, p); return null; }).exceptionally(e -> { e.printStackTrace(); return null; });
+    }
+
+    private void checkpointSessionNow() {
+        WorkoutSession s = session;
+        if (s == null) return;
+        try { sessions.saveIfActive(s, s.checkpoint()); } catch (IOException e) { e.printStackTrace(); }
     }
 
-    private void stopTimerAndSave(JTextArea recArea) {
-        if (timerStart == null) { JOptionPane.showMessageDialog(this, "Timer is not running."); return; }
+    // Parks another user's session on disk and picks up this user's checkpoint, if any.
+    private void attachSession(User u) {
+        WorkoutSession s = session;
+        if (s != null && s.userId == u.id) return;
+        if (s != null) { checkpointSessionNow(); session = null; uiTimer.stop(); timerLabel.setSeconds(0); }
+        if ("admin".equals(u.role)) return;
+        WorkoutSession restored = sessions.load(u.id);
+        if (restored == null) return;
+        session = restored;
+        lastInterval = restored.interval();
+        pauseBtn.setText(restored.running() ? "Pause" : "Resume");
+        timerLabel.setSeconds(restored.elapsedSeconds());
+        uiTimer.start();
+        SwingUtilities.invokeLater(() -> recArea.setText("Resumed workout in progress (" + formatDuration((int) restored.elapsedSeconds()) + " so far)."));
+    }
+
+    // The paused session stays checkpointed until the workout is handed to write-behind, so a crash or a
+    // closed window while the dialogs are up restores it on the next login.
+    private void stopTimerAndSave() {
+        WorkoutSession s = session;
+        if (s == null) { JOptionPane.showMessageDialog(this, "Timer is not running."); return; }
         uiTimer.stop();
-        Duration d = Duration.between(timerStart, LocalDateTime.now());
-        int seconds = (int)d.getSeconds();
-        timerStart = null;
-        timerLabel.setText("00:00:00");
+        s.pause();
+        checkpointSession();
+        int seconds = (int) s.elapsedSeconds();
+        timerLabel.setSeconds(seconds);
         String[] options = new String[]{"Low (MET 3.5 - walking)", "Moderate (MET 6 - jogging)", "High (MET 8 - running)", "Cancel"};
         int choice = JOptionPane.showOptionDialog(this, "Choose intensity to estimate calories burned:", "Calories", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[1]);
-        if (choice < 0 || choice == 3) return;
+        if (choice < 0 || choice == 3) {
+            if (JOptionPane.showConfirmDialog(this, "Discard this workout (" + formatDuration(seconds) + ")?", "Discard Workout",
+                    JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                endSession();
+                bg.call(() -> { sessions.clear(s); return null; }).exceptionally(e -> { e.printStackTrace(); return null; });
+            } else keepPaused(s);
+            return;
+        }
         double met = (choice==0?3.5: choice==1?6.0:8.0);
         double weightKg = currentUser.weightKg == null ? askWeightFallback() : currentUser.weightKg;
-        if (weightKg <= 0) { JOptionPane.showMessageDialog(this, "No valid weight available to estimate calories."); return; }
-        double hours = seconds / 3600.0;
-        double calories = met * weightKg * hours;
+        if (weightKg <= 0) { JOptionPane.showMessageDialog(this, "No valid weight available to estimate calories."); keepPaused(s); return; }
+        double calories = estimateCalories(met, weightKg, seconds);
         String note = JOptionPane.showInputDialog(this, "Optional note for this workout (e.g., 'morning run'):");
-        Integer wid = db.addWorkout(currentUser.id, seconds, calories, note==null?"":note);
-        if (wid != null) {
+        int uid = s.userId;
+        WorkoutRow row = new WorkoutRow();
+        row.userId = uid; Timestamps.now(row);
+        row.durationSeconds = seconds; row.calories = calories; row.note = note==null?"":note;
+        endSession();
+        recArea.setText("Saving workout...");
+        Background.onEdt(Metrics.GLOBAL.track("task.saveWorkout", db.writeBehind.submit(row)), wid -> {
+            bg.call(() -> { sessions.clear(s); return null; }).exceptionally(e -> { e.printStackTrace(); return null; });
             JOptionPane.showMessageDialog(this, String.format("Saved workout: %s (%s) — estimated %.1f kcal", formatDuration(seconds), (choice==0?"Low":choice==1?"Moderate":"High"), calories));
-            refreshWorkouts();
-        } else JOptionPane.showMessageDialog(this, "Failed to save workout.");
-        computeAndShowRecommendations();
+        }, e -> { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Failed to save workout: " + e.getMessage() + "\nThe session is kept and comes back at the next login."); });
+    }
+
+    private void endSession() {
+        session = null;
+        timerLabel.setSeconds(0);
+        pauseBtn.setText("Pause");
+    }
+
+    private void keepPaused(WorkoutSession s) {
+        pauseBtn.setText("Resume");
+        uiTimer.start();
+        recArea.setText("Paused at " + formatDuration((int) s.elapsedSeconds()) + ". Resume, or Stop & Save again.");
     }
 
     private double askWeightFallback() {
@@ -574,28 +5162,84 @@ public class FitnessTrackerApp extends JFrame {
         try { return Double.parseDouble(s); } catch (Exception e) { return -1; }
     }
 
-    private String formatDuration(int seconds) {
+    private static String formatDuration(int seconds) {
         int h = seconds/3600; int m = (seconds%3600)/60; int s = seconds%60;
         return String.format("%02d:%02d:%02d", h,m,s);
     }
 
-    private void exportWorkoutsCSV() {
+    private void exportWorkoutsCSV(Integer userId, String defaultName) {
         JFileChooser fc = new JFileChooser();
         fc.setDialogTitle("Export Workouts CSV");
-        fc.setSelectedFile(new File("workouts_" + currentUser.username + ".csv"));
+        fc.setSelectedFile(new File(defaultName));
         if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
         File f = fc.getSelectedFile();
-        try (BufferedWriter bw = Files.newBufferedWriter(f.toPath())) {
-            bw.write("date,duration_seconds,calories,note");
-            bw.newLine();
-            for (Workout w : db.getWorkoutsForUser(currentUser.id)) {
-                bw.write(String.format("\"%s\",%d,%.2f,\"%s\"", w.date, w.durationSeconds, w.calories, w.note==null?"":w.note));
-                bw.newLine();
+        Background.onEdt(Metrics.GLOBAL.track("task.export", bg.call(() -> {
+            try (BufferedWriter bw = Files.newBufferedWriter(f.toPath())) {
+                return db.exportWorkoutsCsv(userId, bw);
+            }
+        })), n -> JOptionPane.showMessageDialog(this, "Exported " + n + " workouts to " + f.getAbsolutePath()),
+           e -> { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Export failed: " + e.getMessage()); });
+    }
+
+    private void backupNow() {
+        Background.onEdt(Metrics.GLOBAL.track("task.backup", bg.coalesce("backup", () -> Backup.of(db).run())),
+                r -> JOptionPane.showMessageDialog(this, String.format("Backed up %.1f MB to %s", r.bytes / 1e6, r.file.toAbsolutePath())),
+                e -> { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Backup failed: " + e.getMessage()); });
+    }
+
+    private void importWorkoutsCSV(Integer userId) {
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Import Workouts CSV");
+        fc.setFileFilter(new FileNameExtensionFilter("CSV files", "csv"));
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File f = fc.getSelectedFile();
+        Background.onEdt(bg.call(() -> {
+            try (BufferedReader br = Files.newBufferedReader(f.toPath())) {
+                return db.importWorkoutsCsv(br, userId);
             }
-            JOptionPane.showMessageDialog(this, "Exported to " + f.getAbsolutePath());
-        } catch (IOException e) { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Export failed: " + e.getMessage()); }
+        }), n -> {
+            JOptionPane.showMessageDialog(this, "Imported " + n + " workouts from " + f.getName());
+        }, e -> { e.printStackTrace(); JOptionPane.showMessageDialog(this, "Import failed: " + e.getMessage()); });
+    }
+
+    private void showDiagnostics() {
+        JDialog d = new JDialog(this, "Diagnostics", false);
+        JTextArea report = new JTextArea(Metrics.GLOBAL.report(), 30, 120);
+        report.setEditable(false);
+        report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JSpinner slowMs = new JSpinner(new SpinnerNumberModel((int) TimeUnit.NANOSECONDS.toMillis(Metrics.GLOBAL.slowQueryNanos), 0, 60_000, 10));
+        slowMs.addChangeListener(e -> Metrics.GLOBAL.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos((Integer) slowMs.getValue()));
+        JButton refresh = new JButton("Refresh");
+        JButton reset = new JButton("Reset");
+        JButton dump = new JButton("Dump to File");
+        refresh.addActionListener(e -> report.setText(Metrics.GLOBAL.report()));
+        reset.addActionListener(e -> { Metrics.GLOBAL.reset(); report.setText(Metrics.GLOBAL.report()); });
+        dump.addActionListener(e -> Background.onEdt(bg.call(() -> Metrics.GLOBAL.dump(Paths.get("."))),
+                f -> JOptionPane.showMessageDialog(d, "Metrics written to " + f.toAbsolutePath()), this::showError));
+        JPanel btns = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        btns.add(new JLabel("Slow SQL threshold (ms):")); btns.add(slowMs);
+        btns.add(refresh); btns.add(reset); btns.add(dump);
+        d.add(new JScrollPane(report), BorderLayout.CENTER);
+        d.add(btns, BorderLayout.SOUTH);
+        d.pack();
+        d.setLocationRelativeTo(this);
+        d.setVisible(true);
+    }
+
+    private void showBusy(int running) {
+        busyBar.setVisible(running > 0);
+        busyLabel.setText(running > 0 ? "Working... (" + running + ")" : " ");
+    }
+
+    private void showError(Throwable t) {
+        t.printStackTrace();
+        JOptionPane.showMessageDialog(this, "Operation failed: " + t.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
     }
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(Headless.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
             new FitnessTrackerApp();